@@ -0,0 +1,126 @@
+package fi.helsinki.cs.tmc.edutestutils;
+
+import fi.helsinki.cs.tmc.edutestutils.classloaders.ClassLoaderTracker;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Reports class loaders created by {@link ReflectionUtils#newInstanceOfClass(String)}
+ * that are still reachable after a test class.
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * @ClassRule
+ * public static ClassLoaderLeakRule leaks = new ClassLoaderLeakRule();
+ * }
+ * </pre>
+ *
+ * <p>
+ * After the tests, non-final static fields of the test class that refer to
+ * reloaded classes or their instances are set to null and preloaded class
+ * copies are dropped (see {@link ReflectionUtils#setPreloadedClassCopies(int)}).
+ * Then garbage collection is requested until the loaders created during the
+ * tests have been collected, so that the JVM can unload their classes.
+ * Loaders still alive after a timeout are reported on {@code System.err},
+ * or as an {@link AssertionError} if {@link #setFailOnLeak(boolean)} is set.
+ *
+ * <p>
+ * It also works as a {@code @Rule}, in which case it checks after each test
+ * but clears no static fields and keeps preloaded class copies.
+ *
+ * <p>
+ * Loaders are attributed to the rule by the order in which they were
+ * created, so loaders created by test classes running in parallel with this
+ * one are reported as its leaks too. Don't combine the rule with parallel
+ * test classes, at least not with {@link #setFailOnLeak(boolean)}.
+ */
+public class ClassLoaderLeakRule implements TestRule {
+
+    private long timeoutMillis = 2000;
+    private boolean failOnLeak = false;
+
+    /**
+     * Sets how long to wait for the loaders to be collected. Defaults to 2000ms.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets whether leaks fail the test class instead of just being reported.
+     * Defaults to false.
+     */
+    public void setFailOnLeak(boolean failOnLeak) {
+        this.failOnLeak = failOnLeak;
+    }
+
+    @Override
+    public Statement apply(final Statement stmnt, final Description d) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                long mark = ClassLoaderTracker.getShared().mark();
+                stmnt.evaluate();
+                if (d.isSuite()) {
+                    if (d.getTestClass() != null) {
+                        clearStaticReferences(d.getTestClass());
+                    }
+                    ReflectionUtils.discardPreloadedClassCopies();
+                }
+                check(mark, d.getDisplayName());
+            }
+        };
+    }
+
+    private void check(long mark, String name) throws InterruptedException {
+        List<String> leaked = ClassLoaderTracker.getShared().awaitCollection(mark, timeoutMillis);
+        if (leaked.isEmpty()) {
+            return;
+        }
+        String msg = leaked.size() + " class loader(s) created by " + name + " were not garbage collected: " + leaked;
+        if (failOnLeak) {
+            throw new AssertionError(msg);
+        } else {
+            System.err.println("Warning: " + msg);
+        }
+    }
+
+    /**
+     * Sets non-final static fields of the class that refer to classes loaded
+     * by tracked loaders, or instances of such classes, to null.
+     */
+    public static void clearStaticReferences(Class<?> cls) {
+        ClassLoaderTracker tracker = ClassLoaderTracker.getShared();
+        for (Field field : cls.getDeclaredFields()) {
+            int mod = field.getModifiers();
+            if (!Modifier.isStatic(mod) || Modifier.isFinal(mod) || field.getType().isPrimitive()) {
+                continue;
+            }
+            try {
+                field.setAccessible(true);
+                Object value = field.get(null);
+                if (value == null) {
+                    continue;
+                }
+                Class<?> valueClass = (value instanceof Class<?>) ? (Class<?>)value : value.getClass();
+                if (tracker.isTracked(valueClass.getClassLoader())) {
+                    field.set(null, null);
+                }
+            } catch (IllegalAccessException e) {
+                // Leave inaccessible fields alone.
+            } catch (SecurityException e) {
+            } catch (RuntimeException e) {
+                // Thrown by setAccessible on Java 9+ for fields of closed modules.
+                if (!e.getClass().getName().equals("java.lang.reflect.InaccessibleObjectException")) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package fi.helsinki.cs.tmc.edutestutils;
 
+import fi.helsinki.cs.tmc.edutestutils.utils.CaptureBuffer;
+import fi.helsinki.cs.tmc.edutestutils.utils.IncrementalDecoder;
+import fi.helsinki.cs.tmc.edutestutils.utils.OutputLimitExceededException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 
 /**
- * A simple class for capturing {@code System.out} and injecting {@code System.in}.
+ * A simple class for capturing {@code System.out} and {@code System.err} and injecting {@code System.in}.
  *
  * <p>
  * Usage:</p>
@@ -23,49 +30,213 @@ import java.io.ByteArrayInputStream;
  * &nbsp;&nbsp;&nbsp;&nbsp;// Check that the output is correct<br>
  * }<br>
  * </code>
- * 
- * This class automatically converts line endings in stdout to unix format (only \n).
- * 
+ *
+ * <p>
+ * It is also {@link AutoCloseable}, so a try-with-resources statement
+ * may be used instead of the {@code finally} block.
+ *
+ * <p>
+ * As a JUnit rule, create it with one of the {@code forRule} methods, e.g.
+ * {@code @Rule public MockInOut mio = MockInOut.forRule("");}, so that the
+ * streams are redirected only while each test runs. The rule is closed
+ * automatically after the test, and the test fails with an
+ * {@link OutputLimitExceededException} if the output exceeded a limit with
+ * {@link CaptureBuffer.OverflowPolicy#FAIL}, even if the tested code caught
+ * the exception thrown by the print call.
+ *
+ * <p>
+ * This class automatically converts line endings in stdout and stderr to unix format (only \n).
+ *
+ * <p>
+ * To protect against programs stuck in a printing loop, the amount of output
+ * kept in memory can be limited with
+ * {@link #MockInOut(String, int, CaptureBuffer.OverflowPolicy)}.
+ *
  * @see MockStdio
  */
-public class MockInOut {
+public class MockInOut implements AutoCloseable, TestRule {
 
     private PrintStream orig;
+    private PrintStream erig;
     private InputStream irig;
-    private ByteArrayOutputStream os;
-    private ByteArrayInputStream is;
+    private final Charset charset;
+    private final int maxOutputBytes;
+    private final CaptureBuffer.OverflowPolicy policy;
+    private CaptureBuffer os;
+    private CaptureBuffer es;
+    private IncrementalDecoder osDecoder;
+    private IncrementalDecoder esDecoder;
+    private InputStream is;
 
     public MockInOut(String input) {
+        this(input, CaptureBuffer.UNLIMITED, CaptureBuffer.OverflowPolicy.FAIL);
+    }
+
+    /**
+     * Captures at most {@code maxOutputBytes} of output in memory and
+     * handles the rest according to {@code policy}.
+     */
+    public MockInOut(String input, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy) {
+        this(input, Charset.defaultCharset(), maxOutputBytes, policy);
+    }
+
+    /**
+     * Encodes the input and decodes the output with the given charset
+     * and limits the output as in {@link #MockInOut(String, int, CaptureBuffer.OverflowPolicy)}.
+     */
+    public MockInOut(String input, Charset charset, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy) {
+        this(new ByteArrayInputStream(input.getBytes(charset)), charset, maxOutputBytes, policy);
+    }
+
+    /**
+     * Reads input from the given stream instead of a string.
+     *
+     * <p>
+     * Useful for large inputs, e.g. with a
+     * {@link fi.helsinki.cs.tmc.edutestutils.utils.ByteBufferInputStream}
+     * over a memory-mapped file or a
+     * {@link fi.helsinki.cs.tmc.edutestutils.utils.ReaderInputStream}.
+     */
+    public MockInOut(InputStream input) {
+        this(input, CaptureBuffer.UNLIMITED, CaptureBuffer.OverflowPolicy.FAIL);
+    }
+
+    /**
+     * Reads input from the given stream and limits the output as in
+     * {@link #MockInOut(String, int, CaptureBuffer.OverflowPolicy)}.
+     */
+    public MockInOut(InputStream input, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy) {
+        this(input, Charset.defaultCharset(), maxOutputBytes, policy);
+    }
+
+    /**
+     * Reads input from the given stream, decodes the output with the given
+     * charset and limits the output as in
+     * {@link #MockInOut(String, int, CaptureBuffer.OverflowPolicy)}.
+     */
+    public MockInOut(InputStream input, Charset charset, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy) {
+        this(input, charset, maxOutputBytes, policy, true);
+    }
+
+    private MockInOut(InputStream input, Charset charset, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy, boolean open) {
+        this.charset = charset;
+        this.maxOutputBytes = maxOutputBytes;
+        this.policy = policy;
+        this.is = input;
+        if (open) {
+            open();
+        }
+    }
+
+    /**
+     * Creates a JUnit rule that redirects the streams only while a test runs.
+     */
+    public static MockInOut forRule(String input) {
+        return forRule(input, Charset.defaultCharset(), CaptureBuffer.UNLIMITED, CaptureBuffer.OverflowPolicy.FAIL);
+    }
+
+    /**
+     * Creates a JUnit rule that redirects the streams only while a test runs.
+     *
+     * @see #MockInOut(String, Charset, int, CaptureBuffer.OverflowPolicy)
+     */
+    public static MockInOut forRule(String input, Charset charset, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy) {
+        return forRule(new ByteArrayInputStream(input.getBytes(charset)), charset, maxOutputBytes, policy);
+    }
+
+    /**
+     * Creates a JUnit rule that redirects the streams only while a test runs.
+     *
+     * @see #MockInOut(InputStream, Charset, int, CaptureBuffer.OverflowPolicy)
+     */
+    public static MockInOut forRule(InputStream input, Charset charset, int maxOutputBytes, CaptureBuffer.OverflowPolicy policy) {
+        return new MockInOut(input, charset, maxOutputBytes, policy, false);
+    }
+
+    private void open() {
         orig = System.out;
+        erig = System.err;
         irig = System.in;
 
-        os = new ByteArrayOutputStream();
-        System.setOut(new PrintStream(os));
+        os = new CaptureBuffer(maxOutputBytes, policy);
+        es = new CaptureBuffer(maxOutputBytes, policy);
+        osDecoder = new IncrementalDecoder(os, charset);
+        esDecoder = new IncrementalDecoder(es, charset);
+        System.setOut(printStream(os));
+        System.setErr(printStream(es));
 
-        is = new ByteArrayInputStream(input.getBytes());
         System.setIn(is);
     }
 
-    /** You can use this if you want to check how much of the input was read. */
+    private PrintStream printStream(CaptureBuffer buffer) {
+        try {
+            return new PrintStream(buffer, false, charset.name());
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** You can use this if you want to check how much of the input was read.
+     * Returns null if the input was not given as a string. */
     public ByteArrayInputStream getInputStream() {
-        return is;
+        return (is instanceof ByteArrayInputStream) ? (ByteArrayInputStream)is : null;
     }
 
     /** Returns everything written to System.out since this {@code MockInOut}
      * was constructed. Can't be called on a closed {@code MockInOut} */
     public String getOutput() {
         if (os != null)
-            return os.toString().replace("\r\n", "\n");
+            return osDecoder.getText();
         else
             throw new Error("getOutput on closed MockInOut!");
     }
 
-    /** Restores System.in and System.out */
+    /** Returns everything written to System.err since this {@code MockInOut}
+     * was constructed. Can't be called on a closed {@code MockInOut} */
+    public String getErrorOutput() {
+        if (es != null)
+            return esDecoder.getText();
+        else
+            throw new Error("getErrorOutput on closed MockInOut!");
+    }
+
+    /** Restores System.in, System.out and System.err. Does nothing if already closed. */
+    @Override
     public void close() {
+        if (os == null) {
+            return;
+        }
+        os.close();
+        es.close();
         os = null;
+        es = null;
         is = null;
         System.setOut(orig);
+        System.setErr(erig);
         System.setIn(irig);
     }
-}
 
+    /**
+     * Implements a JUnit rule that redirects the streams for the test, unless
+     * already done by the constructor, and closes this {@code MockInOut} after it.
+     */
+    @Override
+    public Statement apply(final Statement stmnt, Description d) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                if (os == null) {
+                    open();
+                }
+                try {
+                    stmnt.evaluate();
+                    if (os.isLimitExceeded() || es.isLimitExceeded()) {
+                        throw new OutputLimitExceededException("Output limit exceeded: more than " + maxOutputBytes + " bytes printed");
+                    }
+                } finally {
+                    close();
+                }
+            }
+        };
+    }
+}
@@ -1,14 +1,28 @@
 package fi.helsinki.cs.tmc.edutestutils;
 
+import fi.helsinki.cs.tmc.edutestutils.utils.ByteBufferInputStream;
+import fi.helsinki.cs.tmc.edutestutils.utils.CaptureBuffer;
+import fi.helsinki.cs.tmc.edutestutils.utils.CapturedOutputReader;
+import fi.helsinki.cs.tmc.edutestutils.utils.FeedableInputStream;
+import fi.helsinki.cs.tmc.edutestutils.utils.IncrementalDecoder;
+import fi.helsinki.cs.tmc.edutestutils.utils.OutputLimitExceededException;
+import fi.helsinki.cs.tmc.edutestutils.utils.ReaderInputStream;
 import fi.helsinki.cs.tmc.edutestutils.utils.SwitchableInputStream;
 import fi.helsinki.cs.tmc.edutestutils.utils.SwitchableOutputStream;
+import fi.helsinki.cs.tmc.edutestutils.utils.Transcript;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
@@ -37,6 +51,46 @@ import org.junit.runners.model.Statement;
  * <p>This class automatically converts line endings in stdout and stderr to
  * unix format (only <tt>\n</tt>).
  * 
+ * <p>
+ * For large outputs, {@link #getSysOutLines()} and {@link #getSysOutReader()}
+ * avoid building the whole output as a string.
+ * 
+ * <p>
+ * The amount of output kept in memory can be limited with
+ * {@link #setOutputLimit(int, CaptureBuffer.OverflowPolicy)}
+ * to protect the JVM from programs stuck in a printing loop.
+ * With {@link CaptureBuffer.OverflowPolicy#SPILL_TO_DISK}, output past the
+ * limit stays readable after the test, e.g. for rules and reporters that run
+ * after this one, and its temporary file is deleted when the next test starts.
+ * 
+ * <h2>Order of stdout and stderr</h2>
+ * 
+ * <p>
+ * With {@link #setTranscriptEnabled(boolean)}, the rule also records
+ * the order in which output was printed to {@link System#out} and
+ * {@link System#err}, so that e.g. error messages can be checked to appear
+ * at the right point. See {@link #getTranscript()}.
+ * 
+ * <h2>Interactive programs</h2>
+ * 
+ * <p>
+ * Programs that print a prompt and then wait for an answer can be driven
+ * step by step by running them in a separate thread and using
+ * {@link #waitForSysOut(String, long)} and {@link #feedSysIn(String)}:
+ * 
+ * <pre>
+ * {@code
+ * io.setInteractiveSysIn();
+ * Thread program = new Thread() { public void run() { Main.main(new String[0]); } };
+ * program.start();
+ * assertTrue(io.waitForSysOut("Name? ", 1000));
+ * io.feedSysIn("Arto\n");
+ * assertTrue(io.waitForSysOut("Hello Arto", 1000));
+ * io.endSysIn();
+ * program.join();
+ * }
+ * </pre>
+ * 
  * <h2>Important notes about initialization order</h2>
  * 
  * <p>
@@ -64,13 +118,45 @@ import org.junit.runners.model.Statement;
  * when used with PowerMock. The simpler {@link MockInOut} may be helpful in
  * those cases.
  * 
+ * <h2>Running tests in parallel</h2>
+ * 
+ * <p>
+ * By default the buffers are shared by the whole JVM, so only one test
+ * may use MockStdio at a time. Constructing the rule with
+ * {@link Scope#THREAD} makes it capture I/O only for the thread running
+ * the test and any threads started by it, which allows test methods to be
+ * run in parallel, e.g. with JUnit's {@code ParallelComputer}.
+ * 
  * @see MockInOut
  */
 public class MockStdio implements TestRule {
 
-    private static boolean initialized = false;
+    /**
+     * Determines which threads' I/O a {@link MockStdio} captures.
+     */
+    public static enum Scope {
+        /**
+         * Captures I/O from all threads. Only one MockStdio may be enabled at a time.
+         */
+        GLOBAL,
+        /**
+         * Captures I/O from the thread that enables the MockStdio and from
+         * threads it starts while enabled. Other threads are unaffected.
+         */
+        THREAD
+    }
+
+    private static volatile boolean initialized = false;
+    private static Charset installedCharset;
+    // The number of enabled instances and the one whose charset System.out uses, if any.
+    private static int enabledCount = 0;
+    private static MockStdio printStreamOwner = null;
     
-    private static final Charset charset = Charset.defaultCharset();
+    // Buffers of the most recently finished test. They are closed when the next
+    // test starts rather than right away, so that rules and reporters running
+    // after this rule can still read output that was spilled to disk.
+    private static CaptureBuffer[] retiredBuffers = null;
+    private static boolean shutdownHookAdded = false;
     
     private static final InputStream realIn = System.in;
     private static final OutputStream realOut = System.out;
@@ -80,10 +166,45 @@ public class MockStdio implements TestRule {
     private static final SwitchableOutputStream switchOut = new SwitchableOutputStream(realOut);
     private static final SwitchableOutputStream switchErr = new SwitchableOutputStream(realErr);
     
+    private final Scope scope;
+    
+    // Per-instance routing targets in THREAD scope, so that threads inheriting
+    // the routing see later changes to the mock streams.
+    private final SwitchableInputStream threadIn = new SwitchableInputStream(realIn);
+    private final SwitchableOutputStream threadOut = new SwitchableOutputStream(realOut);
+    private final SwitchableOutputStream threadErr = new SwitchableOutputStream(realErr);
+    
     private InputStream mockIn;
-    private ByteArrayOutputStream mockOut;
-    private ByteArrayOutputStream mockErr;
-    private boolean enabled;
+    private CaptureBuffer mockOut;
+    private CaptureBuffer mockErr;
+    private IncrementalDecoder mockOutDecoder;
+    private IncrementalDecoder mockErrDecoder;
+    private Transcript transcript;
+    private boolean transcriptEnabled = false;
+    private Charset charset = Charset.defaultCharset();
+    private volatile boolean enabled;
+    
+    private long sysOutWaitPosition;
+    private long sysInTimeout = 0;
+    
+    private int outputLimit = CaptureBuffer.UNLIMITED;
+    private CaptureBuffer.OverflowPolicy overflowPolicy = CaptureBuffer.OverflowPolicy.FAIL;
+    
+    /**
+     * Constructs a rule that captures I/O from all threads.
+     */
+    public MockStdio() {
+        this(Scope.GLOBAL);
+    }
+    
+    /**
+     * Constructs a rule that captures I/O in the given scope.
+     */
+    public MockStdio(Scope scope) {
+        this.scope = scope;
+        resetMockIn();
+        resetMockOutAndErr();
+    }
     
     @Override
     public Statement apply(final Statement stmnt, Description d) {
@@ -95,65 +216,568 @@ public class MockStdio implements TestRule {
                         enable();
                     }
                     stmnt.evaluate();
+                    if (mockOut.isLimitExceeded() || mockErr.isLimitExceeded()) {
+                        throw new OutputLimitExceededException("Output limit exceeded: more than " + outputLimit + " bytes printed");
+                    }
                 } finally {
                     if (enabled) {
                         disable();
                     }
+                    retireBuffers(mockOut, mockErr);
                 }
             }
         };
     }
     
-    private void initialize() {
-        resetMockIn();
-        resetMockOutAndErr();
-        
-        System.setIn(switchIn);
-        System.setOut(new PrintStream(switchOut, true));
-        System.setErr(new PrintStream(switchErr, true));
-        
-        initialized = true;
+    private static synchronized void initialize() {
+        if (!initialized) {
+            System.setIn(switchIn);
+            installPrintStreams(Charset.defaultCharset());
+            
+            initialized = true;
+        }
+    }
+    
+    /**
+     * Replaces {@link System#out} and {@link System#err} with streams
+     * that encode in the given charset, unless they already do.
+     */
+    private static synchronized void installPrintStreams(Charset charset) {
+        if (charset.equals(installedCharset)) {
+            return;
+        }
+        try {
+            System.setOut(new PrintStream(switchOut, true, charset.name()));
+            System.setErr(new PrintStream(switchErr, true, charset.name()));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        installedCharset = charset;
+    }
+    
+    private static synchronized void retireBuffers(CaptureBuffer... buffers) {
+        closeRetiredBuffers();
+        retiredBuffers = buffers;
+        if (!shutdownHookAdded) {
+            Thread hook = new Thread("MockStdio.SpillCleanup") {
+                @Override
+                public void run() {
+                    synchronized (MockStdio.class) {
+                        closeRetiredBuffers();
+                    }
+                }
+            };
+            hook.setContextClassLoader(null);
+            Runtime.getRuntime().addShutdownHook(hook);
+            shutdownHookAdded = true;
+        }
+    }
+    
+    private static void closeRetiredBuffers() {
+        if (retiredBuffers != null) {
+            for (CaptureBuffer buffer : retiredBuffers) {
+                buffer.close();
+            }
+            retiredBuffers = null;
+        }
     }
     
     private void resetMockIn() {
+        endSysIn();
         mockIn = new ByteArrayInputStream(new byte[0]);
     }
     
     private void resetMockOutAndErr() {
-        mockOut = new ByteArrayOutputStream();
-        mockErr = new ByteArrayOutputStream();
+        if (mockOut != null) {
+            mockOut.close();
+            mockErr.close();
+        }
+        mockOut = new CaptureBuffer(outputLimit, overflowPolicy);
+        mockErr = new CaptureBuffer(outputLimit, overflowPolicy);
+        transcript = new Transcript(mockOut, mockErr);
+        resetDecoders();
+        sysOutWaitPosition = 0;
+    }
+    
+    private void resetDecoders() {
+        mockOutDecoder = new IncrementalDecoder(mockOut, charset);
+        mockErrDecoder = new IncrementalDecoder(mockErr, charset);
+        updateRetainedChars();
+    }
+    
+    /**
+     * Keeps decoded output that was spilled to disk from staying in memory.
+     */
+    private void updateRetainedChars() {
+        int max = (overflowPolicy == CaptureBuffer.OverflowPolicy.SPILL_TO_DISK) ? outputLimit : Integer.MAX_VALUE;
+        mockOutDecoder.setMaxRetainedChars(max);
+        mockErrDecoder.setMaxRetainedChars(max);
+    }
+    
+    /**
+     * Sets the character set used to encode input and decode output.
+     * 
+     * <p>
+     * Defaults to the platform default charset. If another charset is set,
+     * {@link System#out} and {@link System#err} are replaced with streams that
+     * encode in it while the rule is enabled. Since they are shared by all
+     * threads, this is only done if no other MockStdio is enabled at the time.
+     * Print streams that the tested code saved before the rule was enabled keep
+     * encoding in the platform default charset.
+     */
+    public synchronized void setCharset(Charset charset) {
+        this.charset = charset;
+        resetDecoders();
+        if (enabled) {
+            updatePrintStreams();
+        }
+    }
+    
+    /**
+     * Returns the character set used to encode input and decode output.
+     */
+    public Charset getCharset() {
+        return charset;
     }
     
     /**
      * Sets what {@link System#in} receives during this test.
+     * 
+     * <p>
+     * For very large inputs, see {@link #setSysIn(Reader)} and {@link #setSysIn(Path)}.
      */
     public void setSysIn(String str) {
-        mockIn = new ByteArrayInputStream(str.getBytes(charset));
+        setSysIn(new ByteArrayInputStream(str.getBytes(charset)));
+    }
+    
+    /**
+     * Sets {@link System#in} to read the given text during this test.
+     * 
+     * <p>
+     * The reader is read and encoded lazily, so the text
+     * need not fit into memory.
+     */
+    public void setSysIn(Reader reader) {
+        setSysIn(new ReaderInputStream(reader, charset));
+    }
+    
+    /**
+     * Sets {@link System#in} to read the contents of a file during this test.
+     * 
+     * <p>
+     * The file is memory-mapped instead of being copied onto the heap,
+     * which makes this suitable for very large inputs.
+     * 
+     * @throws RuntimeException If the file cannot be read.
+     */
+    public void setSysIn(Path path) {
+        try {
+            setSysIn(ByteBufferInputStream.map(path));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Sets {@link System#in} to read the remaining bytes of the buffer during this test.
+     * 
+     * <p>
+     * The bytes are not copied and the buffer's position is not changed.
+     */
+    public void setSysIn(ByteBuffer bytes) {
+        setSysIn(new ByteBufferInputStream(bytes));
+    }
+    
+    /**
+     * Sets {@link System#in} to read from the given stream during this test.
+     */
+    public synchronized void setSysIn(InputStream in) {
+        endSysIn();
+        mockIn = in;
         if (enabled) {
-            switchIn.setUnderlying(mockIn);
+            routeIn(mockIn);
+        }
+    }
+    
+    /**
+     * Makes {@link System#in} receive the input given later with
+     * {@link #feedSysIn(String)}.
+     * 
+     * <p>
+     * Reads block until more input is fed or {@link #endSysIn()} is called.
+     * Call this before starting the tested code so that it does not
+     * see the end of the input prematurely.
+     * Any input given with {@link #setSysIn(String)} is discarded.
+     */
+    public synchronized void setInteractiveSysIn() {
+        endSysIn();
+        mockIn = new FeedableInputStream(sysInTimeout);
+        if (enabled) {
+            routeIn(mockIn);
+        }
+    }
+    
+    /**
+     * Appends to what {@link System#in} receives during this test.
+     * 
+     * <p>
+     * Unlike {@link #setSysIn(String)}, this may be called while the tested
+     * code is reading input in another thread.
+     * Calls {@link #setInteractiveSysIn()} first if it hasn't been called.
+     */
+    public synchronized void feedSysIn(String str) {
+        if (!(mockIn instanceof FeedableInputStream)) {
+            setInteractiveSysIn();
+        }
+        ((FeedableInputStream)mockIn).feed(str.getBytes(charset));
+    }
+    
+    /**
+     * Makes {@link System#in} reach end-of-file once the input given
+     * with {@link #feedSysIn(String)} has been read.
+     */
+    public synchronized void endSysIn() {
+        if (mockIn instanceof FeedableInputStream) {
+            ((FeedableInputStream)mockIn).endInput();
+        }
+    }
+    
+    /**
+     * Sets how long reads from input given by {@link #feedSysIn(String)}
+     * wait for more input before failing. Zero, the default, means forever.
+     */
+    public synchronized void setSysInTimeout(long millis) {
+        sysInTimeout = millis;
+        if (mockIn instanceof FeedableInputStream) {
+            ((FeedableInputStream)mockIn).setReadTimeout(millis);
+        }
+    }
+    
+    /**
+     * Waits until {@link System#out} contains the given text.
+     * 
+     * <p>
+     * Only output printed after the end of the previous successful match
+     * is searched, so the same prompt may be waited for repeatedly.
+     * The text is matched as is, i.e. line endings are not converted.
+     * 
+     * @param text The text to wait for, e.g. a prompt.
+     * @param timeoutMillis The maximum time to wait.
+     * @return Whether the text was found before the timeout.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean waitForSysOut(String text, long timeoutMillis) throws InterruptedException {
+        byte[] pattern = text.getBytes(charset);
+        CaptureBuffer buffer = mockOut;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long from = sysOutWaitPosition;
+        while (true) {
+            long size = buffer.size();
+            long index;
+            try {
+                index = buffer.indexOf(pattern, from);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            if (index >= 0) {
+                sysOutWaitPosition = index + pattern.length;
+                return true;
+            }
+            from = Math.max(from, size - pattern.length + 1);
+            
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !buffer.awaitGrowth(size, remaining)) {
+                return false;
+            }
         }
     }
     
     /**
      * Returns what was printed to {@link System#out} during this test.
+     * 
+     * <p>
+     * Only output printed since the previous call is decoded, and the same
+     * string is returned again if nothing has been printed in between,
+     * so this is cheap to call repeatedly.
+     * 
+     * <p>
+     * Once output has been spilled to disk, it is decoded again on each call
+     * and not kept in memory between calls. The returned string still holds
+     * all of it, so prefer {@link #getSysOutLines()} for such outputs.
      */
     public String getSysOut() {
-        try {
-            return mockOut.toString(charset.name()).replace("\r\n", "\n");
-        } catch (UnsupportedEncodingException ex) {
-            throw new RuntimeException(ex);
-        }
+        return mockOutDecoder.getText();
     }
     
     /**
      * Returns what was printed to {@link System#err} during this test.
+     * 
+     * @see #getSysOut()
      */
     public String getSysErr() {
+        return mockErrDecoder.getText();
+    }
+    
+    /**
+     * Sets whether to record the order of writes to {@link System#out}
+     * and {@link System#err}.
+     * 
+     * <p>
+     * May be called before or during a test. Only output printed while
+     * enabled is recorded. Defaults to false.
+     * 
+     * @see #getTranscript()
+     * @see #getTranscriptSegments()
+     */
+    public synchronized void setTranscriptEnabled(boolean enable) {
+        this.transcriptEnabled = enable;
+        if (enabled) {
+            routeMockOutAndErr();
+        }
+    }
+    
+    /**
+     * Tells whether the order of writes is being recorded.
+     */
+    public boolean isTranscriptEnabled() {
+        return transcriptEnabled;
+    }
+    
+    /**
+     * Returns what was printed to {@link System#out} and {@link System#err}
+     * merged in the order it was printed.
+     * 
+     * <p>
+     * Requires {@link #setTranscriptEnabled(boolean)}.
+     * The output is not stored twice: this is assembled from the same
+     * buffers that {@link #getSysOut()} and {@link #getSysErr()} read.
+     */
+    public String getTranscript() {
+        StringBuilder sb = new StringBuilder();
+        Reader reader = new CapturedOutputReader(transcript, charset);
+        char[] chunk = new char[8192];
         try {
-            return mockErr.toString(charset.name()).replace("\r\n", "\n");
-        } catch (UnsupportedEncodingException ex) {
+            int n;
+            while ((n = reader.read(chunk)) != -1) {
+                sb.append(chunk, 0, n);
+            }
+        } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        return sb.toString();
+    }
+    
+    /**
+     * Returns the recorded runs of consecutive writes to
+     * {@link System#out} or {@link System#err}, in order.
+     * 
+     * <p>
+     * Requires {@link #setTranscriptEnabled(boolean)}. For example
+     * 
+     * <pre>
+     * {@code
+     * for (Transcript.Segment seg : io.getTranscriptSegments()) {
+     *     if (seg.getStream() == Transcript.Stream.ERR) {
+     *         String errorMessage = seg.getText(io.getCharset());
+     *         // ...
+     *     }
+     * }
+     * }
+     * </pre>
+     */
+    public List<Transcript.Segment> getTranscriptSegments() {
+        return transcript.getSegments();
+    }
+    
+    /**
+     * A position in the output of a {@link MockStdio}.
+     * 
+     * @see MockStdio#markSysOut()
+     */
+    public static final class Mark {
+        private final IncrementalDecoder decoder;
+        private final int offset;
+        private final boolean afterCarriageReturn;
+        
+        private Mark(IncrementalDecoder decoder) {
+            synchronized (decoder) {
+                this.decoder = decoder;
+                this.offset = decoder.length();
+                this.afterCarriageReturn = decoder.endsWithCarriageReturn();
+            }
+        }
+    }
+    
+    /**
+     * Marks the current end of {@link System#out}.
+     * 
+     * <p>
+     * This and {@link #getSysOutSince(Mark)} make it cheap to check the
+     * output of a long-running program step by step:
+     * 
+     * <pre>
+     * {@code
+     * MockStdio.Mark mark = io.markSysOut();
+     * program.doStep();
+     * assertEquals("step 1 done\n", io.getSysOutSince(mark));
+     * }
+     * </pre>
+     */
+    public Mark markSysOut() {
+        return new Mark(mockOutDecoder);
+    }
+    
+    /**
+     * Marks the current end of {@link System#err}.
+     * 
+     * @see #markSysOut()
+     */
+    public Mark markSysErr() {
+        return new Mark(mockErrDecoder);
+    }
+    
+    /**
+     * Returns what was printed to {@link System#out} after the mark was taken.
+     * 
+     * <p>
+     * Output before the mark is not decoded or copied again.
+     * 
+     * @throws IllegalArgumentException If the mark was not taken from
+     *                                  {@link System#out} during this test.
+     */
+    public String getSysOutSince(Mark mark) {
+        return textSince(mockOutDecoder, mark);
+    }
+    
+    /**
+     * Returns what was printed to {@link System#err} after the mark was taken.
+     * 
+     * @see #getSysOutSince(Mark)
+     */
+    public String getSysErrSince(Mark mark) {
+        return textSince(mockErrDecoder, mark);
+    }
+    
+    private static String textSince(IncrementalDecoder decoder, Mark mark) {
+        if (mark.decoder != decoder) {
+            throw new IllegalArgumentException("The mark is from a different stream, test or charset");
+        }
+        return decoder.getTextFrom(mark.offset, mark.afterCarriageReturn);
+    }
+    
+    /**
+     * Returns a reader that decodes what has been printed to {@link System#out}
+     * so far, without building it into a string.
+     */
+    public Reader getSysOutReader() {
+        return new CapturedOutputReader(mockOut, charset);
+    }
+    
+    /**
+     * Returns a reader that decodes what has been printed to {@link System#err}
+     * so far, without building it into a string.
+     */
+    public Reader getSysErrReader() {
+        return new CapturedOutputReader(mockErr, charset);
+    }
+    
+    /**
+     * Iterates over the lines printed to {@link System#out}, without line terminators.
+     * 
+     * <p>
+     * Lines are decoded one at a time as the iteration proceeds,
+     * so this is suitable for checking very large outputs, e.g.
+     * 
+     * <pre>
+     * {@code
+     * for (String line : io.getSysOutLines()) {
+     *     assertFalse(line.contains("error"));
+     * }
+     * }
+     * </pre>
+     */
+    public Iterable<String> getSysOutLines() {
+        return linesOf(mockOut);
+    }
+    
+    /**
+     * Iterates over the lines printed to {@link System#err}, without line terminators.
+     * 
+     * @see #getSysOutLines()
+     */
+    public Iterable<String> getSysErrLines() {
+        return linesOf(mockErr);
+    }
+    
+    private Iterable<String> linesOf(final CaptureBuffer buffer) {
+        final Charset charset = this.charset;
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new LineIterator(new CapturedOutputReader(buffer, charset));
+            }
+        };
+    }
+    
+    private static class LineIterator implements Iterator<String> {
+        private final CapturedOutputReader reader;
+        private String next;
+        
+        public LineIterator(CapturedOutputReader reader) {
+            this.reader = reader;
+            this.next = readLine();
+        }
+        
+        private String readLine() {
+            try {
+                return reader.readLine();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String result = next;
+            next = readLine();
+            return result;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Limits how much of {@link System#out} and {@link System#err}
+     * (each separately) is kept in memory.
+     * 
+     * <p>
+     * May be called before or during a test. By default there is no limit.
+     * 
+     * <p>
+     * With {@link CaptureBuffer.OverflowPolicy#FAIL}, the test fails
+     * with an {@link OutputLimitExceededException} even if the
+     * tested code catches the exception thrown by the print call.
+     * 
+     * @param maxBytes The maximum number of bytes to keep in memory per stream.
+     * @param policy What to do when the limit is reached.
+     */
+    public void setOutputLimit(int maxBytes, CaptureBuffer.OverflowPolicy policy) {
+        this.outputLimit = maxBytes;
+        this.overflowPolicy = policy;
+        mockOut.setLimit(maxBytes, policy);
+        mockErr.setLimit(maxBytes, policy);
+        updateRetainedChars();
     }
     
     /**
@@ -169,10 +793,19 @@ public class MockStdio implements TestRule {
         }
         
         resetMockOutAndErr();
+        synchronized (MockStdio.class) {
+            closeRetiredBuffers();
+            ++enabledCount;
+            updatePrintStreams();
+        }
         
-        switchIn.setUnderlying(mockIn);
-        switchOut.setUnderlying(mockOut);
-        switchErr.setUnderlying(mockErr);
+        routeIn(mockIn);
+        routeMockOutAndErr();
+        if (scope == Scope.THREAD) {
+            switchIn.setThreadUnderlying(threadIn);
+            switchOut.setThreadUnderlying(threadOut);
+            switchErr.setThreadUnderlying(threadErr);
+        }
         
         enabled = true;
     }
@@ -197,11 +830,75 @@ public class MockStdio implements TestRule {
     public void disable() {
         enabled = false;
         
-        switchIn.setUnderlying(realIn);
-        switchOut.setUnderlying(realOut);
-        switchErr.setUnderlying(realErr);
+        if (scope == Scope.THREAD) {
+            switchIn.setThreadUnderlying(null);
+            switchOut.setThreadUnderlying(null);
+            switchErr.setThreadUnderlying(null);
+        }
+        routeIn(realIn);
+        routeOutAndErr(realOut, realErr);
+        synchronized (MockStdio.class) {
+            --enabledCount;
+            if (printStreamOwner == this) {
+                printStreamOwner = null;
+                installPrintStreams(Charset.defaultCharset());
+            }
+        }
         
+        mockOutDecoder.finish();
+        mockErrDecoder.finish();
         resetMockIn();
     }
     
+    /**
+     * Tells which threads' I/O this rule captures.
+     */
+    public Scope getScope() {
+        return scope;
+    }
+    
+    /**
+     * Makes System.out and System.err encode in this instance's charset
+     * if it isn't the default and no other instance is enabled.
+     */
+    private void updatePrintStreams() {
+        synchronized (MockStdio.class) {
+            boolean own = !charset.equals(Charset.defaultCharset())
+                    && (printStreamOwner == this || (printStreamOwner == null && enabledCount == 1));
+            if (own) {
+                printStreamOwner = this;
+                installPrintStreams(charset);
+            } else if (printStreamOwner == this) {
+                printStreamOwner = null;
+                installPrintStreams(Charset.defaultCharset());
+            }
+        }
+    }
+    
+    private void routeIn(InputStream in) {
+        if (scope == Scope.THREAD) {
+            threadIn.setUnderlying(in);
+        } else {
+            switchIn.setUnderlying(in);
+        }
+    }
+    
+    private void routeMockOutAndErr() {
+        if (transcriptEnabled) {
+            routeOutAndErr(transcript.sink(Transcript.Stream.OUT), transcript.sink(Transcript.Stream.ERR));
+        } else {
+            routeOutAndErr(mockOut, mockErr);
+        }
+    }
+    
+    private void routeOutAndErr(OutputStream out, OutputStream err) {
+        if (scope == Scope.THREAD) {
+            threadOut.setUnderlying(out);
+            threadErr.setUnderlying(err);
+        } else {
+            switchOut.setUnderlying(out);
+            switchErr.setUnderlying(err);
+        }
+    }
+    
 }
@@ -1,11 +1,15 @@
 package fi.helsinki.cs.tmc.edutestutils;
 
-import fi.helsinki.cs.tmc.edutestutils.classloaders.SingleClassLoader;
+import fi.helsinki.cs.tmc.edutestutils.classloaders.ClassCopyPool;
+import fi.helsinki.cs.tmc.edutestutils.classloaders.ClassLoaderTracker;
+import fi.helsinki.cs.tmc.edutestutils.classloaders.InstrumentingClassLoader;
+import fi.helsinki.cs.tmc.edutestutils.classloaders.ScopedClassLoader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.ResourceBundle;
 
@@ -40,6 +44,8 @@ public class ReflectionUtils {
     private static final int[] ALL_ACCESS_MODIFIERS = { PUBLIC, PROTECTED, PRIVATE, PACKAGE_PRIVATE };
     private static final String[] ALL_ACCESS_MODIFIERS_STR = { "public", "protected", "private", "package_private" };
     
+    private static volatile ClassCopyPool classCopyPool = null;
+    
     static {
         EduTestUtilsDefaultLocale.addListener(new EduTestUtilsDefaultLocale.Listener() {
             public void eduTestUtilsLocaleChanged(Locale newLocale) {
@@ -149,6 +155,7 @@ public class ReflectionUtils {
      * Any dependencies are still loaded using the system class loader.
      * For instance, a JLabel returned by a method of the loaded class is the same JLabel
      * as the one loaded by the system class loader.
+     * To reload dependencies too, use {@link #newInstanceOfClass(String, String...)}.
      * 
      * @param className The fully qualified name of the class to reload.
      * @return A new instance of the class.
@@ -156,8 +163,7 @@ public class ReflectionUtils {
      * @throws AssertionError If the class could not be found.
      */
     public static Class<?> newInstanceOfClass(final String className) {
-        ClassLoader loader = new SingleClassLoader(className);
-        return loadClassWith(className, loader);
+        return loadCopy(className, new String[0]);
     }
     
     /**
@@ -169,6 +175,167 @@ public class ReflectionUtils {
         return newInstanceOfClass(cls.getName());
     }
     
+    /**
+     * Loads a new instance of the class and the given packages in a new class loader.
+     * 
+     * <p>
+     * Works like {@link #newInstanceOfClass(java.lang.String)} except that
+     * classes matching any of {@code reloadedPackages} are also loaded by
+     * the new class loader. This way all the classes of a multi-class exercise
+     * see each other's fresh static state, while everything else, such as
+     * JUnit and this library, is shared with the system class loader.
+     * 
+     * <p>
+     * A pattern is a package or class name, e.g. {@code "com.example"}, which
+     * matches it and everything in it. The pattern {@code ""} matches every
+     * class, which is useful for exercises in the default package.
+     * To also exclude some classes, create a
+     * {@link ScopedClassLoader} and pass it to {@link #loadClassWith(String, ClassLoader)}.
+     * 
+     * @param className The fully qualified name of the class to reload.
+     * @param reloadedPackages Patterns of other classes to reload.
+     * @return A new instance of the class.
+     * @throws RuntimeException If an error occurs while reading a class file.
+     * @throws AssertionError If the class could not be found.
+     */
+    public static Class<?> newInstanceOfClass(String className, String... reloadedPackages) {
+        return loadCopy(className, reloadedPackages);
+    }
+    
+    /**
+     * Loads a new instance of the class and the given packages in a new class loader.
+     * 
+     * Please see {@link #newInstanceOfClass(String, String...)}.
+     */
+    public static Class<?> newInstanceOfClass(Class<?> cls, String... reloadedPackages) {
+        return newInstanceOfClass(cls.getName(), reloadedPackages);
+    }
+    
+    /**
+     * Loads a new instance of the class in a new class loader that counts
+     * how many times each of its methods is called.
+     * 
+     * <p>
+     * Classes matching {@code countedPackages} (see
+     * {@link #newInstanceOfClass(String, String...)}) are also reloaded and counted.
+     * The counts can be read with {@link #getCallCount(Class, String)}, e.g.
+     * from a class obtained through {@link Reflex}:
+     * 
+     * <pre>
+     * {@code
+     * Class<?> fib = ReflectionUtils.newInstrumentedInstanceOfClass("Fib");
+     * Reflex.reflect(fib).staticMethod("fib").returning(int.class).taking(int.class).invoke(20);
+     * assertTrue(ReflectionUtils.getCallCount(fib, "fib") < 100);
+     * }
+     * </pre>
+     * 
+     * @param className The fully qualified name of the class to reload.
+     * @param countedPackages Patterns of other classes to reload and count.
+     * @return A new instance of the class.
+     * @throws AssertionError If the class could not be found.
+     * @see InstrumentingClassLoader
+     */
+    public static Class<?> newInstrumentedInstanceOfClass(String className, String... countedPackages) {
+        String[] includes = Arrays.copyOf(countedPackages, countedPackages.length + 1);
+        includes[countedPackages.length] = className;
+        InstrumentingClassLoader loader = new InstrumentingClassLoader(includes);
+        ClassLoaderTracker.getShared().track(loader, className + " (instrumented)");
+        return loadClassWith(className, loader);
+    }
+    
+    /**
+     * Returns the number of calls to all overloads of a method of a class
+     * loaded by {@link #newInstrumentedInstanceOfClass(String, String...)}.
+     * 
+     * @throws IllegalArgumentException If the class was not instrumented.
+     */
+    public static long getCallCount(Class<?> cls, String methodName) {
+        return instrumentingLoaderOf(cls).getCallCount(cls.getName(), methodName);
+    }
+    
+    /**
+     * Returns the number of calls to all methods of a class
+     * loaded by {@link #newInstrumentedInstanceOfClass(String, String...)}.
+     * 
+     * @throws IllegalArgumentException If the class was not instrumented.
+     */
+    public static long getCallCount(Class<?> cls) {
+        return instrumentingLoaderOf(cls).getCallCount(cls.getName());
+    }
+    
+    /**
+     * Sets the call counts of all classes loaded together with the given
+     * class by {@link #newInstrumentedInstanceOfClass(String, String...)} to zero.
+     * 
+     * @throws IllegalArgumentException If the class was not instrumented.
+     */
+    public static void resetCallCounts(Class<?> cls) {
+        instrumentingLoaderOf(cls).resetCounts();
+    }
+    
+    private static InstrumentingClassLoader instrumentingLoaderOf(Class<?> cls) {
+        if (!(cls.getClassLoader() instanceof InstrumentingClassLoader)) {
+            throw new IllegalArgumentException(cls.getName() + " was not loaded by an InstrumentingClassLoader");
+        }
+        return (InstrumentingClassLoader)cls.getClassLoader();
+    }
+    
+    /**
+     * Makes {@code newInstanceOfClass} keep copies of classes loaded ahead of time.
+     * 
+     * <p>
+     * After a class has been requested once, a background thread keeps up to
+     * {@code copies} new copies of it loaded, linked and ready, so that
+     * later calls return immediately. The copies are still uninitialized.
+     * This speeds up test classes that reload a class for each test method.
+     * 
+     * <p>
+     * Preloading is disabled by default. Zero disables it and drops any
+     * preloaded copies.
+     * 
+     * @param copies The number of copies of each class to keep ready.
+     */
+    public static synchronized void setPreloadedClassCopies(int copies) {
+        if (copies < 0) {
+            throw new IllegalArgumentException("copies must not be negative");
+        }
+        if (classCopyPool != null) {
+            classCopyPool.shutdown();
+        }
+        classCopyPool = (copies > 0) ? new ClassCopyPool(copies) : null;
+    }
+    
+    /**
+     * Drops copies preloaded so far so they don't keep their loaders alive.
+     */
+    static void discardPreloadedClassCopies() {
+        ClassCopyPool pool = classCopyPool;
+        if (pool != null) {
+            pool.clear();
+        }
+    }
+    
+    /**
+     * Returns the number of preloaded copies of the class currently ready.
+     */
+    static int availablePreloadedClassCopies(String className) {
+        ClassCopyPool pool = classCopyPool;
+        return (pool != null) ? pool.available(className) : 0;
+    }
+    
+    private static Class<?> loadCopy(String className, String[] reloadedPackages) {
+        ClassCopyPool pool = classCopyPool;
+        try {
+            if (pool != null) {
+                return pool.take(className, reloadedPackages);
+            } else {
+                return ClassCopyPool.loadCopy(className, reloadedPackages);
+            }
+        } catch (ClassNotFoundException ex) {
+            throw classNotFound(className);
+        }
+    }
+    
     /**
      * Loads a class with the given class loader and gives user-friendly errors.
      * 
@@ -182,11 +349,15 @@ public class ReflectionUtils {
         try {
             return loader.loadClass(className);
         } catch (ClassNotFoundException ex) {
-            if (className.contains(".")) {
-                throw new AssertionError(tr("class_not_found_pkg", className));
-            } else {
-                throw new AssertionError(tr("class_not_found", className));
-            }
+            throw classNotFound(className);
+        }
+    }
+    
+    private static AssertionError classNotFound(String className) {
+        if (className.contains(".")) {
+            return new AssertionError(tr("class_not_found_pkg", className));
+        } else {
+            return new AssertionError(tr("class_not_found", className));
         }
     }
     
@@ -1,43 +1,170 @@
 package fi.helsinki.cs.tmc.edutestutils.classloaders;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class loader whose findClass() closely resembles the default.
+ *
+ * <p>
+ * It is registered as parallel capable. Subclasses should be too, and
+ * should lock on {@link #getClassLoadingLock(String)} instead of the loader.
  */
 public abstract class AbstractClassLoader extends ClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    // Names are only ever added, so the set is capped to bound its memory use
+    // (around a megabyte when full). Suites look up far fewer distinct missing
+    // names than this, and once full, further misses are just not remembered,
+    // which costs a classpath search each instead of an eviction policy.
+    private static final int MAX_MISSING_CLASSES = 10000;
+    private static final Set<String> missingClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    protected AbstractClassLoader() {
+    }
+
+    protected AbstractClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        InputStream classIn = getClass().getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class");
-        if (classIn == null) {
+        Class<?> cls = defineClassIfFound(name);
+        if (cls == null) {
             throw new ClassNotFoundException(name);
         }
-        classIn = new BufferedInputStream(classIn);
+        return cls;
+    }
 
+    /**
+     * Like {@link #findClass(String)} but returns null instead of throwing
+     * if the class can't be found, which is much cheaper when it's common.
+     */
+    protected Class<?> defineClassIfFound(String name) {
+        byte[] classDef;
         try {
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-
-            int data = classIn.read();
-            while (data != -1) {
-                buf.write(data);
-                data = classIn.read();
-            }
-
-            byte[] classDef = buf.toByteArray();
-            return defineClass(name, classDef, 0, classDef.length);
+            classDef = loadClassBytes(name);
         } catch (FileNotFoundException e) {
-            throw new ClassNotFoundException();
+            return null;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        }
+        if (classDef == null) {
+            return null;
+        }
+        return defineClass(name, classDef, 0, classDef.length);
+    }
+
+    /**
+     * Returns the bytecode of the given class, or null if it can't be found.
+     *
+     * <p>
+     * By default, reads the class file from the resources of the class loader
+     * that loaded this class loader. Class files are cached in
+     * {@link ClassBytesCache#getShared()}, so loading the same class
+     * again in another class loader doesn't read the file again.
+     * Names whose class file wasn't found are remembered by all loaders
+     * (up to 10000 names), so looking them up again doesn't search the classpath.
+     */
+    protected byte[] loadClassBytes(String name) throws IOException {
+        boolean sharedLookup = (getClass().getClassLoader() == AbstractClassLoader.class.getClassLoader());
+        if (sharedLookup && missingClasses.contains(name)) {
+            return null;
+        }
+        URL url = findClassFile(name);
+        if (url == null) {
+            if (sharedLookup && missingClasses.size() < MAX_MISSING_CLASSES) {
+                missingClasses.add(name);
+            }
+            return null;
+        }
+        return ClassBytesCache.getShared().get(name, url);
+    }
+
+    /**
+     * Finds the class file of the given class in the resources of the class
+     * loader that loaded this class loader.
+     */
+    URL findClassFile(String name) {
+        return getClass().getClassLoader().getResource(name.replace('.', '/') + ".class");
+    }
+
+    /**
+     * Forgets which classes were not found, e.g. after class files were
+     * added to the classpath at runtime.
+     */
+    public static void clearMissingClasses() {
+        missingClasses.clear();
+    }
+
+    /**
+     * Reads a resource in as few operations as possible.
+     *
+     * <p>
+     * Files are read directly. Other resources (e.g. in jars) are
+     * read into an array pre-sized to the resource's length, if known.
+     */
+    static byte[] readResource(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return Files.readAllBytes(Paths.get(url.toURI()));
+            } catch (URISyntaxException e) {
+                // Fall back to reading through a URLConnection
+            } catch (IllegalArgumentException e) {
+                // Fall back to reading through a URLConnection
+            }
+        }
+
+        URLConnection conn = url.openConnection();
+        long length = conn.getContentLengthLong();
+        InputStream in = conn.getInputStream();
+        try {
+            if (length >= 0 && length < Integer.MAX_VALUE) {
+                return readFully(in, (int)length);
+            } else {
+                return readToEnd(in);
+            }
         } finally {
             try {
-                classIn.close();
+                in.close();
             } catch (IOException e) {
             }
         }
     }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] result = new byte[length];
+        int pos = 0;
+        while (pos < length) {
+            int n = in.read(result, pos, length - pos);
+            if (n < 0) {
+                throw new EOFException("Resource shorter than its reported length");
+            }
+            pos += n;
+        }
+        return result;
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(8192);
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            buf.write(chunk, 0, n);
+        }
+        return buf.toByteArray();
+    }
 }
@@ -0,0 +1,147 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of class file contents.
+ *
+ * <p>
+ * Entries are keyed by class name, resource URL and the resource's
+ * modification time, so a recompiled class is read again.
+ * When the total size of the cached class files exceeds the limit,
+ * the least recently used entries are evicted.
+ *
+ * <p>
+ * The arrays returned are shared and must not be modified.
+ */
+public class ClassBytesCache {
+
+    /**
+     * The default limit of the shared cache, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final ClassBytesCache shared = new ClassBytesCache(DEFAULT_MAX_BYTES);
+
+    /**
+     * Returns the process-wide cache used by {@link AbstractClassLoader}.
+     */
+    public static ClassBytesCache getShared() {
+        return shared;
+    }
+
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+    private long maxBytes;
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ClassBytesCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the contents of the class file at the given URL,
+     * reading it if it's not cached.
+     */
+    public byte[] get(String className, URL url) throws IOException {
+        String key = className + '\0' + url.toExternalForm() + '\0' + lastModified(url);
+        synchronized (this) {
+            byte[] bytes = entries.get(key);
+            if (bytes != null) {
+                hits++;
+                return bytes;
+            }
+            misses++;
+        }
+
+        byte[] bytes = AbstractClassLoader.readResource(url);
+
+        synchronized (this) {
+            if (bytes.length <= maxBytes && !entries.containsKey(key)) {
+                entries.put(key, bytes);
+                totalBytes += bytes.length;
+                evict();
+            }
+        }
+        return bytes;
+    }
+
+    private static long lastModified(URL url) throws IOException {
+        String path = url.getPath();
+        if ("jar".equals(url.getProtocol())) {
+            int sep = path.indexOf("!/");
+            if (sep != -1 && path.startsWith("file:")) {
+                return fileLastModified(new URL(path.substring(0, sep)));
+            }
+        } else if ("file".equals(url.getProtocol())) {
+            return fileLastModified(url);
+        }
+        return url.openConnection().getLastModified();
+    }
+
+    private static long fileLastModified(URL fileUrl) throws IOException {
+        try {
+            return Paths.get(fileUrl.toURI()).toFile().lastModified();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Changes the size limit, evicting entries if necessary.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the total size of the cached class files.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the number of lookups served from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to read the class file.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+}
@@ -0,0 +1,198 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps fresh copies of classes, each in its own class loader, loaded ahead of time.
+ *
+ * <p>
+ * The first request for a class loads it synchronously. After that a
+ * background daemon thread keeps up to {@code copiesPerClass} further
+ * copies ready, so later requests return immediately. The copies are
+ * linked but <b>not initialized</b>, just like freshly loaded ones.
+ *
+ * <p>
+ * A copy is loaded with a {@link SingleClassLoader} if no other packages
+ * are to be reloaded and with a {@link ScopedClassLoader} otherwise.
+ * The loaders are tracked by {@link ClassLoaderTracker#getShared()} once their
+ * copies are handed out, so copies waiting in the pool aren't reported as leaks.
+ *
+ * <p>
+ * Failures are remembered until {@link #clear()}: a class that was not found
+ * is reported as missing again without another lookup, and a class that
+ * could not be preloaded is loaded synchronously on each request instead.
+ */
+public class ClassCopyPool {
+
+    private static class Entry {
+        final BlockingQueue<Class<?>> copies = new LinkedBlockingQueue<Class<?>>();
+        final AtomicBoolean refilling = new AtomicBoolean(false);
+        volatile boolean missing = false;
+        volatile boolean preloadFailed = false;
+    }
+
+    private final int copiesPerClass;
+    private final ConcurrentMap<List<String>, Entry> entries = new ConcurrentHashMap<List<String>, Entry>();
+    private final ExecutorService executor;
+
+    public ClassCopyPool(int copiesPerClass) {
+        if (copiesPerClass <= 0) {
+            throw new IllegalArgumentException("copiesPerClass must be positive");
+        }
+        this.copiesPerClass = copiesPerClass;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ClassCopyPool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Loads a new copy of a class in a new class loader.
+     *
+     * @param className The fully qualified name of the class.
+     * @param reloadedPackages Patterns of other classes the new loader should load itself.
+     */
+    public static Class<?> loadCopy(String className, String... reloadedPackages) throws ClassNotFoundException {
+        return track(loadUntracked(className, reloadedPackages), reloadedPackages);
+    }
+
+    private static Class<?> loadUntracked(String className, String[] reloadedPackages) throws ClassNotFoundException {
+        ClassLoader loader;
+        if (reloadedPackages.length == 0) {
+            loader = new SingleClassLoader(className);
+        } else {
+            String[] includes = Arrays.copyOf(reloadedPackages, reloadedPackages.length + 1);
+            includes[reloadedPackages.length] = className;
+            loader = new ScopedClassLoader(includes);
+        }
+        return loader.loadClass(className);
+    }
+
+    private static Class<?> track(Class<?> cls, String[] reloadedPackages) {
+        String description = cls.getName();
+        if (reloadedPackages.length > 0) {
+            description += " with " + Arrays.toString(reloadedPackages);
+        }
+        ClassLoaderTracker.getShared().track(cls.getClassLoader(), description);
+        return cls;
+    }
+
+    /**
+     * Returns a fresh copy of the class and schedules a replacement.
+     *
+     * @see #loadCopy(String, String...)
+     */
+    public Class<?> take(String className, String... reloadedPackages) throws ClassNotFoundException {
+        List<String> key = key(className, reloadedPackages);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.missing) {
+            throw new ClassNotFoundException(className);
+        }
+        Class<?> cls = (entry != null) ? entry.copies.poll() : null;
+        if (entry == null) {
+            entries.putIfAbsent(key, new Entry());
+            entry = entries.get(key);
+        }
+        if (cls != null) {
+            track(cls, reloadedPackages);
+        } else {
+            try {
+                cls = loadCopy(className, reloadedPackages);
+            } catch (ClassNotFoundException e) {
+                entry.missing = true;
+                throw e;
+            }
+        }
+        scheduleRefill(entry, className, reloadedPackages);
+        return cls;
+    }
+
+    /**
+     * Returns the number of copies of the class currently ready.
+     */
+    public int available(String className, String... reloadedPackages) {
+        Entry entry = entries.get(key(className, reloadedPackages));
+        return (entry != null) ? entry.copies.size() : 0;
+    }
+
+    /**
+     * Tells whether looking up or preloading the class has failed since the last {@link #clear()}.
+     */
+    boolean hasFailed(String className, String... reloadedPackages) {
+        Entry entry = entries.get(key(className, reloadedPackages));
+        return entry != null && (entry.missing || entry.preloadFailed);
+    }
+
+    /**
+     * Drops all pooled copies. New ones are loaded as classes are requested.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Stops the background thread and drops all pooled copies.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        entries.clear();
+    }
+
+    private void scheduleRefill(final Entry entry, final String className, final String[] reloadedPackages) {
+        if (entry.preloadFailed || !entry.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (entry.copies.size() < copiesPerClass && !Thread.currentThread().isInterrupted()) {
+                            entry.copies.add(prepare(loadUntracked(className, reloadedPackages)));
+                        }
+                    } catch (Throwable t) {
+                        // The same error will be reported when the class is loaded synchronously.
+                        // Don't try again on every request.
+                        entry.preloadFailed = true;
+                    } finally {
+                        entry.refilling.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refilling.set(false);
+        }
+    }
+
+    /**
+     * Gets the class verified and its reflection data cached without initializing it.
+     */
+    private static Class<?> prepare(Class<?> cls) {
+        cls.getDeclaredMethods();
+        cls.getDeclaredConstructors();
+        cls.getDeclaredFields();
+        return cls;
+    }
+
+    private static List<String> key(String className, String[] reloadedPackages) {
+        List<String> key = new ArrayList<String>(reloadedPackages.length + 1);
+        key.add(className);
+        key.addAll(Arrays.asList(reloadedPackages));
+        return key;
+    }
+}
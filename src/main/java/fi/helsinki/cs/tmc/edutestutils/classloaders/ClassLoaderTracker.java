@@ -0,0 +1,131 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of class loaders without keeping them alive.
+ *
+ * <p>
+ * Loaders created for reloading classes should become unreachable
+ * once a test is done with them, so that the JVM can unload their classes.
+ * This class makes it possible to tell which of them haven't.
+ *
+ * <p>
+ * Each tracked loader gets a sequence number. {@link #mark()} returns the
+ * next one, so loaders created after a point in time can be told apart.
+ */
+public class ClassLoaderTracker {
+
+    private static final ClassLoaderTracker shared = new ClassLoaderTracker();
+
+    /**
+     * Returns the tracker to which loaders created by this library are added.
+     */
+    public static ClassLoaderTracker getShared() {
+        return shared;
+    }
+
+    private static class LoaderRef extends WeakReference<ClassLoader> {
+        final long sequenceNumber;
+        final String description;
+
+        LoaderRef(ClassLoader loader, ReferenceQueue<ClassLoader> queue, long sequenceNumber, String description) {
+            super(loader, queue);
+            this.sequenceNumber = sequenceNumber;
+            this.description = description;
+        }
+    }
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+    private final Set<LoaderRef> refs = ConcurrentHashMap.<LoaderRef>newKeySet();
+    private final AtomicLong nextSequenceNumber = new AtomicLong(0);
+
+    /**
+     * Starts tracking a class loader.
+     *
+     * @param description A human-readable description used in reports.
+     */
+    public void track(ClassLoader loader, String description) {
+        expunge();
+        refs.add(new LoaderRef(loader, queue, nextSequenceNumber.getAndIncrement(), description));
+    }
+
+    /**
+     * Returns the sequence number the next tracked loader will get.
+     */
+    public long mark() {
+        return nextSequenceNumber.get();
+    }
+
+    /**
+     * Returns whether the given loader is being tracked and is still alive.
+     */
+    public boolean isTracked(ClassLoader loader) {
+        if (loader == null) {
+            return false;
+        }
+        for (LoaderRef ref : refs) {
+            if (ref.get() == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of tracked loaders still alive.
+     */
+    public int getLiveCount() {
+        return getLiveDescriptionsSince(0).size();
+    }
+
+    /**
+     * Returns descriptions of tracked loaders that are still alive
+     * and were tracked at or after the given mark.
+     */
+    public List<String> getLiveDescriptionsSince(long mark) {
+        expunge();
+        List<String> result = new ArrayList<String>();
+        for (LoaderRef ref : refs) {
+            if (ref.sequenceNumber >= mark && ref.get() != null) {
+                result.add(ref.description);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Requests garbage collection until the loaders tracked since the mark
+     * have been collected or the timeout expires.
+     *
+     * <p>
+     * Garbage collection can't be forced, so loaders still alive
+     * after this are likely but not certainly leaked.
+     *
+     * @return Descriptions of the loaders still alive.
+     */
+    public List<String> awaitCollection(long mark, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<String> live = getLiveDescriptionsSince(mark);
+        while (!live.isEmpty() && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(20);
+            live = getLiveDescriptionsSince(mark);
+        }
+        return live;
+    }
+
+    private void expunge() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            refs.remove(ref);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Decides whether a class name is in a set of included packages/classes
+ * and not in a set of excluded ones.
+ *
+ * <p>
+ * A pattern is a package or class name such as {@code com.example} or
+ * {@code com.example.Main}. It matches the name itself, classes nested in it
+ * and classes in it and its subpackages, but not e.g. {@code com.examples}.
+ * A pattern ending in a dot matches any name starting with it and the empty
+ * pattern matches every name, including those in the default package.
+ *
+ * <p>
+ * The most specific (longest) matching pattern decides. An exclude pattern
+ * beats an identical include pattern. Names matched by no include pattern
+ * are not included.
+ *
+ * <p>
+ * Patterns are stored in a trie so a lookup takes a single pass over the name
+ * regardless of the number of patterns.
+ */
+public class ClassNameMatcher {
+
+    private static final byte NONE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        byte verdict = NONE;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node existing = child(c);
+            if (existing != null) {
+                return existing;
+            }
+            int n = keys.length;
+            char[] newKeys = new char[n + 1];
+            Node[] newChildren = new Node[n + 1];
+            System.arraycopy(keys, 0, newKeys, 0, n);
+            System.arraycopy(children, 0, newChildren, 0, n);
+            newKeys[n] = c;
+            newChildren[n] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[n];
+        }
+    }
+
+    private final Node root = new Node();
+
+    public ClassNameMatcher(Collection<String> includes, Collection<String> excludes) {
+        for (String pattern : includes) {
+            add(pattern, INCLUDE);
+        }
+        for (String pattern : excludes) {
+            add(pattern, EXCLUDE);
+        }
+    }
+
+    public ClassNameMatcher(Collection<String> includes) {
+        this(includes, Collections.<String>emptyList());
+    }
+
+    private void add(String pattern, byte verdict) {
+        Node node = root;
+        for (int i = 0; i < pattern.length(); ++i) {
+            node = node.addChild(pattern.charAt(i));
+        }
+        if (node.verdict != EXCLUDE) {
+            node.verdict = verdict;
+        }
+    }
+
+    /**
+     * Returns whether the given fully qualified class name is included.
+     */
+    public boolean matches(String className) {
+        byte verdict = root.verdict;
+        Node node = root;
+        int len = className.length();
+        for (int i = 0; i < len && node != null; ++i) {
+            char c = className.charAt(i);
+            if (node.verdict != NONE && node != root && (c == '.' || c == '$')) {
+                verdict = node.verdict;
+            }
+            node = node.child(c);
+            if (node != null && node.verdict != NONE && c == '.') {
+                verdict = node.verdict;
+            }
+        }
+        if (node != null && node.verdict != NONE) {
+            verdict = node.verdict;
+        }
+        return verdict == INCLUDE;
+    }
+}
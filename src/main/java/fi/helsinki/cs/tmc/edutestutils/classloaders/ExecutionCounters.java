@@ -0,0 +1,45 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The entry point of counters incremented by code instrumented by
+ * {@link InstrumentingClassLoader}.
+ *
+ * <p>
+ * The counters belong to the loader that defined the instrumented class, so they
+ * are collected along with it. Each class finds its counters once through a
+ * {@link ClassValue}.
+ *
+ * <p>
+ * Counters are {@link LongAdder}s, so threads incrementing the same counter
+ * don't contend on a single memory location and no locks are taken.
+ */
+public final class ExecutionCounters {
+
+    private static final LongAdder[] NO_COUNTERS = new LongAdder[0];
+
+    private static final ClassValue<LongAdder[]> counters = new ClassValue<LongAdder[]>() {
+        @Override
+        protected LongAdder[] computeValue(Class<?> cls) {
+            ClassLoader loader = cls.getClassLoader();
+            if (loader instanceof InstrumentingClassLoader) {
+                return ((InstrumentingClassLoader)loader).getCounters(cls.getName());
+            }
+            return NO_COUNTERS;
+        }
+    };
+
+    private ExecutionCounters() {
+    }
+
+    /**
+     * Increments a counter of the given class. Called by instrumented code.
+     */
+    public static void hit(Class<?> cls, int index) {
+        LongAdder[] classCounters = counters.get(cls);
+        if (index < classCounters.length) {
+            classCounters[index].increment();
+        }
+    }
+}
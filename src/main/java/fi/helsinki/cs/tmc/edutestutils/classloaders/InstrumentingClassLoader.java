@@ -0,0 +1,165 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link ScopedClassLoader} that counts how many times each method
+ * of the classes it loads is called.
+ *
+ * <p>
+ * The counts are deterministic, unlike CPU time, so they can be used to
+ * check e.g. that a recursive solution makes at most O(n) calls.
+ * Counting is cheap: each call increments a striped counter without locking.
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * InstrumentingClassLoader loader = new InstrumentingClassLoader("com.example");
+ * Reflex.reflect("com.example.Fib", loader).staticMethod("fib")...;
+ * long calls = loader.getCallCount("com.example.Fib", "fib");
+ * }
+ * </pre>
+ *
+ * <p>
+ * Only method calls are counted. Counting loop iterations or basic blocks
+ * would require recomputing stack map frames, which needs a full bytecode library.
+ */
+public class InstrumentingClassLoader extends ScopedClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private static class Counter {
+        final String className;
+        final String methodName;
+        final String descriptor;
+        final LongAdder count = new LongAdder();
+
+        Counter(String className, String methodName, String descriptor) {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+        }
+    }
+
+    private final List<Counter> counters = new CopyOnWriteArrayList<Counter>();
+    private final Map<String, LongAdder[]> countersByClass = new ConcurrentHashMap<String, LongAdder[]>();
+
+    public InstrumentingClassLoader(String... includes) {
+        this(Arrays.asList(includes), Collections.<String>emptyList());
+    }
+
+    public InstrumentingClassLoader(Collection<String> includes, Collection<String> excludes) {
+        super(includes, withCounters(excludes));
+    }
+
+    private static Collection<String> withCounters(Collection<String> excludes) {
+        List<String> result = new ArrayList<String>(excludes);
+        result.add(ExecutionCounters.class.getName());
+        return result;
+    }
+
+    @Override
+    protected byte[] loadClassBytes(final String name) throws IOException {
+        byte[] original = super.loadClassBytes(name);
+        if (original == null) {
+            return null;
+        }
+        final List<Counter> classCounters = new ArrayList<Counter>();
+        byte[] instrumented = MethodEntryInstrumenter.instrument(original, new MethodEntryInstrumenter.CounterAllocator() {
+            @Override
+            public int allocate(String methodName, String descriptor) {
+                classCounters.add(new Counter(name, methodName, descriptor));
+                return classCounters.size() - 1;
+            }
+        });
+        if (instrumented == null) {
+            return original;
+        }
+        LongAdder[] adders = new LongAdder[classCounters.size()];
+        for (int i = 0; i < adders.length; ++i) {
+            adders[i] = classCounters.get(i).count;
+        }
+        countersByClass.put(name, adders);
+        counters.addAll(classCounters);
+        return instrumented;
+    }
+
+    /**
+     * Returns the counters of an instrumented class, indexed as assigned by
+     * {@link MethodEntryInstrumenter}.
+     */
+    LongAdder[] getCounters(String className) {
+        LongAdder[] result = countersByClass.get(className);
+        return (result != null) ? result : new LongAdder[0];
+    }
+
+    /**
+     * Returns the number of calls to all overloads of the given method.
+     */
+    public long getCallCount(String className, String methodName) {
+        long sum = 0;
+        for (Counter counter : counters) {
+            if (counter.className.equals(className) && counter.methodName.equals(methodName)) {
+                sum += counter.count.sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of calls to all methods of the given class.
+     */
+    public long getCallCount(String className) {
+        long sum = 0;
+        for (Counter counter : counters) {
+            if (counter.className.equals(className)) {
+                sum += counter.count.sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of calls to all methods loaded by this loader.
+     */
+    public long getTotalCallCount() {
+        long sum = 0;
+        for (Counter counter : counters) {
+            sum += counter.count.sum();
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the call counts of all methods, keyed by e.g.
+     * {@code com.example.Fib.fib(I)I}.
+     */
+    public Map<String, Long> getCallCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Counter counter : counters) {
+            result.put(counter.className + "." + counter.methodName + counter.descriptor, counter.count.sum());
+        }
+        return result;
+    }
+
+    /**
+     * Sets all counts to zero.
+     */
+    public void resetCounts() {
+        for (Counter counter : counters) {
+            counter.count.reset();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads classes from class files held in memory and delegates others to its parent.
+ *
+ * <p>
+ * Useful for loading classes generated or compiled in memory,
+ * e.g. with {@link MemoryFileManager}, without writing them to disk.
+ */
+public class MemoryClassLoader extends OverridingClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Map<String, byte[]> classes = new ConcurrentHashMap<String, byte[]>();
+
+    public MemoryClassLoader() {
+    }
+
+    /**
+     * @param classes Class files keyed by fully qualified class name.
+     */
+    public MemoryClassLoader(Map<String, byte[]> classes) {
+        this.classes.putAll(classes);
+    }
+
+    /**
+     * Adds a class file. It's used if the class hasn't been loaded yet.
+     */
+    public void addClass(String className, byte[] classFile) {
+        classes.put(className, classFile);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (classes.containsKey(name)) {
+            return super.loadClass(name, resolve);
+        } else {
+            return getParent().loadClass(name);
+        }
+    }
+
+    @Override
+    protected byte[] loadClassBytes(String name) {
+        return classes.get(name);
+    }
+}
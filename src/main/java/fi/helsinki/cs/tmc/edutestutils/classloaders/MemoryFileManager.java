@@ -0,0 +1,104 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * A {@link JavaFileManager} that keeps compiled class files in memory.
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+ * MemoryFileManager fm = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+ * JavaFileObject src = MemoryFileManager.sourceFile("Main", "public class Main { ... }");
+ * compiler.getTask(null, fm, null, null, null, Arrays.asList(src)).call();
+ * Class<?> main = fm.newClassLoader().loadClass("Main");
+ * }
+ * </pre>
+ *
+ * <p>
+ * Reading sources and the classpath is forwarded to the given file manager.
+ */
+public class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+    private final Map<String, ByteArrayOutputStream> classFiles = new LinkedHashMap<String, ByteArrayOutputStream>();
+
+    public MemoryFileManager(JavaFileManager fileManager) {
+        super(fileManager);
+    }
+
+    /**
+     * Creates a source file object from a string.
+     *
+     * @param className The fully qualified name of the (top level) class.
+     * @param code The source code.
+     */
+    public static JavaFileObject sourceFile(String className, final String code) {
+        URI uri = URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, final String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+        if (kind != JavaFileObject.Kind.CLASS) {
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+        URI uri = URI.create("mem:///" + className.replace('.', '/') + kind.extension);
+        return new SimpleJavaFileObject(uri, kind) {
+            @Override
+            public OutputStream openOutputStream() {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                synchronized (classFiles) {
+                    classFiles.put(className, out);
+                }
+                return out;
+            }
+        };
+    }
+
+    /**
+     * Returns the class files compiled so far, keyed by fully qualified class name.
+     */
+    public Map<String, byte[]> getClassFiles() {
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        synchronized (classFiles) {
+            for (Map.Entry<String, ByteArrayOutputStream> entry : classFiles.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().toByteArray());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Creates a new class loader for the classes compiled so far.
+     */
+    public MemoryClassLoader newClassLoader() {
+        return new MemoryClassLoader(getClassFiles());
+    }
+
+    /**
+     * Drops the classes compiled so far.
+     */
+    public void clear() {
+        synchronized (classFiles) {
+            classFiles.clear();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a class file so that each method calls
+ * {@link ExecutionCounters#hit(Class, int)} when entered.
+ *
+ * <p>
+ * The following 12 bytes are inserted at the start of each method's code:
+ * {@code ldc_w <this class>; sipush <counter index>;
+ * invokestatic ExecutionCounters.hit(Ljava/lang/Class;I)V; nop; nop; nop}.
+ * Since the length is a multiple of 4, the padding of switch instructions
+ * stays valid, and since branch offsets are relative, only absolute offsets
+ * need to be adjusted: the exception table, line and local variable tables,
+ * the first frame of the stack map table and the offsets of {@code new}
+ * instructions in its uninitialized verification types. Type annotations on
+ * code are dropped since they aren't needed at runtime.
+ */
+class MethodEntryInstrumenter {
+
+    /**
+     * Assigns counters to methods. Counters are indexed from 0 within each class.
+     */
+    interface CounterAllocator {
+        int allocate(String methodName, String descriptor);
+    }
+
+    private static final int PROLOGUE_LENGTH = 12;
+    private static final int MAX_COUNTERS = 32767;
+    private static final String COUNTERS_CLASS = ExecutionCounters.class.getName().replace('.', '/');
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * Thrown for class files this class doesn't know how to rewrite.
+     */
+    private static class UnsupportedClassFileException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedClassFileException(String message) {
+            super(message);
+        }
+    }
+
+    private final ByteBuffer in;
+    private final Map<Integer, String> utf8 = new HashMap<Integer, String>();
+    private int constantPoolCount;
+    private int constantPoolEnd;
+
+    private MethodEntryInstrumenter(byte[] classFile) {
+        this.in = ByteBuffer.wrap(classFile);
+    }
+
+    /**
+     * Returns the instrumented class file, or null if the class file
+     * can't be instrumented.
+     */
+    static byte[] instrument(byte[] classFile, CounterAllocator allocator) {
+        try {
+            return new MethodEntryInstrumenter(classFile).rewrite(allocator);
+        } catch (UnsupportedClassFileException e) {
+            return null;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] rewrite(CounterAllocator allocator) throws IOException, UnsupportedClassFileException {
+        if (in.getInt() != 0xCAFEBABE) {
+            throw new UnsupportedClassFileException("Not a class file");
+        }
+        in.getShort(); // minor version
+        if (u2() < 49) {
+            // Class constants can't be loaded with ldc before Java 5.
+            throw new UnsupportedClassFileException("Class file too old");
+        }
+        readConstantPool();
+
+        int headerStart = in.position();
+        int thisClassIndex = in.getShort(headerStart + 2) & 0xFFFF;
+        in.position(headerStart + 6); // access flags, this class, super class
+        skip(2 * u2());
+        int fieldCount = u2();
+        for (int i = 0; i < fieldCount; ++i) {
+            in.position(in.position() + 6);
+            skipAttributes();
+        }
+        int headerEnd = in.position();
+
+        // Reserve constant pool entries for the counter method ref.
+        int nextIndex = constantPoolCount;
+        int hitClassNameIndex = nextIndex++;
+        int hitClassIndex = nextIndex++;
+        int hitNameIndex = nextIndex++;
+        int hitDescIndex = nextIndex++;
+        int hitNameAndTypeIndex = nextIndex++;
+        int hitMethodRefIndex = nextIndex++;
+
+        ByteArrayOutputStream methodsBuf = new ByteArrayOutputStream();
+        DataOutputStream methods = new DataOutputStream(methodsBuf);
+        int methodCount = u2();
+        methods.writeShort(methodCount);
+        for (int i = 0; i < methodCount; ++i) {
+            methods.writeShort(u2()); // access flags
+            int nameIndex = u2();
+            int descIndex = u2();
+            methods.writeShort(nameIndex);
+            methods.writeShort(descIndex);
+            int attrCount = u2();
+            methods.writeShort(attrCount);
+            for (int j = 0; j < attrCount; ++j) {
+                int attrName = u2();
+                int attrLength = in.getInt();
+                int attrEnd = in.position() + attrLength;
+                if ("Code".equals(utf8.get(attrName)) && codeLength() + PROLOGUE_LENGTH <= 65535) {
+                    int counterIndex = allocator.allocate(utf8.get(nameIndex), utf8.get(descIndex));
+                    if (counterIndex > MAX_COUNTERS) {
+                        throw new UnsupportedClassFileException("Too many methods");
+                    }
+                    byte[] code = rewriteCode(thisClassIndex, counterIndex, hitMethodRefIndex);
+                    methods.writeShort(attrName);
+                    methods.writeInt(code.length);
+                    methods.write(code);
+                } else {
+                    methods.writeShort(attrName);
+                    methods.writeInt(attrLength);
+                    methods.write(in.array(), in.position(), attrLength);
+                }
+                in.position(attrEnd);
+            }
+        }
+        if (nextIndex > 65535) {
+            throw new UnsupportedClassFileException("Too many constants");
+        }
+
+        ByteArrayOutputStream outBuf = new ByteArrayOutputStream(in.capacity() + 128);
+        DataOutputStream out = new DataOutputStream(outBuf);
+        out.write(in.array(), 0, 8);
+        out.writeShort(nextIndex);
+        out.write(in.array(), 10, constantPoolEnd - 10);
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(COUNTERS_CLASS);
+        out.writeByte(CONSTANT_CLASS);
+        out.writeShort(hitClassNameIndex);
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF("hit");
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF("(Ljava/lang/Class;I)V");
+        out.writeByte(CONSTANT_NAME_AND_TYPE);
+        out.writeShort(hitNameIndex);
+        out.writeShort(hitDescIndex);
+        out.writeByte(CONSTANT_METHODREF);
+        out.writeShort(hitClassIndex);
+        out.writeShort(hitNameAndTypeIndex);
+        out.write(in.array(), headerStart, headerEnd - headerStart);
+        methodsBuf.writeTo(out);
+        out.write(in.array(), in.position(), in.limit() - in.position());
+        out.flush();
+        return outBuf.toByteArray();
+    }
+
+    private void readConstantPool() throws IOException, UnsupportedClassFileException {
+        constantPoolCount = u2();
+        for (int i = 1; i < constantPoolCount; ++i) {
+            int tag = in.get() & 0xFF;
+            switch (tag) {
+                case 1: // Utf8
+                    int len = u2();
+                    utf8.put(i, decodeUtf8(in.position() - 2, len));
+                    skip(len);
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    skip(2);
+                    break;
+                case 15: // MethodHandle
+                    skip(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    skip(4);
+                    break;
+                case 5: case 6: // Long, Double
+                    skip(8);
+                    ++i;
+                    break;
+                default:
+                    throw new UnsupportedClassFileException("Unknown constant pool tag " + tag);
+            }
+        }
+        constantPoolEnd = in.position();
+    }
+
+    private String decodeUtf8(int start, int len) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(in.array(), start, len + 2)).readUTF();
+    }
+
+    /**
+     * Peeks at the code length of the Code attribute at the current position.
+     */
+    private int codeLength() {
+        return in.getInt(in.position() + 4);
+    }
+
+    /**
+     * Rewrites the body of the Code attribute at the current position.
+     */
+    private byte[] rewriteCode(int thisClass, int counterIndex, int hitMethodRef) throws IOException, UnsupportedClassFileException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+
+        int maxStack = u2();
+        out.writeShort(Math.max(maxStack, 2));
+        out.writeShort(u2()); // max locals
+        int codeLength = in.getInt();
+        out.writeInt(codeLength + PROLOGUE_LENGTH);
+        out.writeByte(0x13); // ldc_w
+        out.writeShort(thisClass);
+        out.writeByte(0x11); // sipush
+        out.writeShort(counterIndex);
+        out.writeByte(0xB8); // invokestatic
+        out.writeShort(hitMethodRef);
+        out.writeByte(0x00); // nop
+        out.writeByte(0x00); // nop
+        out.writeByte(0x00); // nop
+        out.write(in.array(), in.position(), codeLength);
+        skip(codeLength);
+
+        int exceptionTableLength = u2();
+        out.writeShort(exceptionTableLength);
+        for (int i = 0; i < exceptionTableLength; ++i) {
+            out.writeShort(u2() + PROLOGUE_LENGTH); // start pc
+            out.writeShort(u2() + PROLOGUE_LENGTH); // end pc
+            out.writeShort(u2() + PROLOGUE_LENGTH); // handler pc
+            out.writeShort(u2()); // catch type
+        }
+
+        int attrCount = u2();
+        List<byte[]> attrs = new ArrayList<byte[]>();
+        for (int i = 0; i < attrCount; ++i) {
+            int attrName = u2();
+            int attrLength = in.getInt();
+            int attrEnd = in.position() + attrLength;
+            String name = utf8.get(attrName);
+            byte[] body;
+            if ("LineNumberTable".equals(name)) {
+                body = rewriteLineNumberTable();
+            } else if ("LocalVariableTable".equals(name) || "LocalVariableTypeTable".equals(name)) {
+                body = rewriteLocalVariableTable();
+            } else if ("StackMapTable".equals(name)) {
+                body = rewriteStackMapTable(attrLength);
+            } else if ("RuntimeVisibleTypeAnnotations".equals(name) || "RuntimeInvisibleTypeAnnotations".equals(name)) {
+                body = null;
+            } else {
+                body = new byte[attrLength];
+                in.get(body);
+            }
+            in.position(attrEnd);
+            if (body != null) {
+                ByteArrayOutputStream attr = new ByteArrayOutputStream(body.length + 6);
+                DataOutputStream attrOut = new DataOutputStream(attr);
+                attrOut.writeShort(attrName);
+                attrOut.writeInt(body.length);
+                attrOut.write(body);
+                attrs.add(attr.toByteArray());
+            }
+        }
+        out.writeShort(attrs.size());
+        for (byte[] attr : attrs) {
+            out.write(attr);
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private byte[] rewriteLineNumberTable() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        int count = u2();
+        out.writeShort(count);
+        for (int i = 0; i < count; ++i) {
+            out.writeShort(u2() + PROLOGUE_LENGTH); // start pc
+            out.writeShort(u2()); // line number
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private byte[] rewriteLocalVariableTable() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        int count = u2();
+        out.writeShort(count);
+        for (int i = 0; i < count; ++i) {
+            int startPc = u2();
+            int length = u2();
+            if (startPc == 0) {
+                // Keep e.g. parameters in scope from the very start.
+                out.writeShort(0);
+                out.writeShort(length + PROLOGUE_LENGTH);
+            } else {
+                out.writeShort(startPc + PROLOGUE_LENGTH);
+                out.writeShort(length);
+            }
+            out.writeShort(u2()); // name
+            out.writeShort(u2()); // descriptor
+            out.writeShort(u2()); // index
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    /**
+     * Only the first frame's offset is absolute; the others are relative to the previous frame.
+     * Uninitialized verification types also hold the absolute offset of a {@code new} instruction.
+     */
+    private byte[] rewriteStackMapTable(int length) throws IOException, UnsupportedClassFileException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(length + 2);
+        DataOutputStream out = new DataOutputStream(buf);
+        int count = u2();
+        out.writeShort(count);
+        for (int i = 0; i < count; ++i) {
+            int shift = (i == 0) ? PROLOGUE_LENGTH : 0;
+            int type = in.get() & 0xFF;
+            if (type <= 63) { // same_frame
+                writeFrameHeader(out, type + shift, 0, 251);
+            } else if (type <= 127) { // same_locals_1_stack_item_frame
+                writeFrameHeader(out, type - 64 + shift, 64, 247);
+                copyVerificationTypes(out, 1);
+            } else if (type < 247) {
+                throw new UnsupportedClassFileException("Unknown stack map frame type " + type);
+            } else {
+                out.writeByte(type);
+                out.writeShort(u2() + shift);
+                if (type == 247) { // same_locals_1_stack_item_frame_extended
+                    copyVerificationTypes(out, 1);
+                } else if (type >= 252 && type <= 254) { // append_frame
+                    copyVerificationTypes(out, type - 251);
+                } else if (type == 255) { // full_frame
+                    int localCount = u2();
+                    out.writeShort(localCount);
+                    copyVerificationTypes(out, localCount);
+                    int stackCount = u2();
+                    out.writeShort(stackCount);
+                    copyVerificationTypes(out, stackCount);
+                }
+            }
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private void copyVerificationTypes(DataOutputStream out, int count) throws IOException, UnsupportedClassFileException {
+        for (int i = 0; i < count; ++i) {
+            int tag = in.get() & 0xFF;
+            out.writeByte(tag);
+            if (tag == 7) { // Object
+                out.writeShort(u2());
+            } else if (tag == 8) { // Uninitialized
+                out.writeShort(u2() + PROLOGUE_LENGTH);
+            } else if (tag > 8) {
+                throw new UnsupportedClassFileException("Unknown verification type " + tag);
+            }
+        }
+    }
+
+    private void writeFrameHeader(DataOutputStream out, int offsetDelta, int compactBase, int extendedType) throws IOException {
+        if (offsetDelta <= 63) {
+            out.writeByte(compactBase + offsetDelta);
+        } else {
+            out.writeByte(extendedType);
+            out.writeShort(offsetDelta);
+        }
+    }
+
+    private void skipAttributes() {
+        int count = u2();
+        for (int i = 0; i < count; ++i) {
+            skip(2);
+            skip(in.getInt());
+        }
+    }
+
+    private int u2() {
+        return in.getShort() & 0xFFFF;
+    }
+
+    private void skip(int n) {
+        in.position(in.position() + n);
+    }
+}
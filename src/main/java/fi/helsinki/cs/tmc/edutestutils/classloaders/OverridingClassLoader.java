@@ -9,26 +9,63 @@ package fi.helsinki.cs.tmc.edutestutils.classloaders;
  * <p>
  * Used alone, it loads classes and their dependencies into a new class space.
  * Classes in {@code java.*}, however, cannot be redefined due to a restriction
- * built into the JVM. They are loaded directly from the parent loader.
+ * built into the JVM. They, other JDK classes and JUnit's classes are
+ * loaded directly from the parent loader.
+ * 
+ * <p>
+ * Different classes may be loaded in parallel.
  */
 public class OverridingClassLoader extends AbstractClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+    
+    /**
+     * Classes with these prefixes are always loaded by the parent, since they
+     * belong to the JDK or to the test framework and reloading them would only
+     * cost time and cause class identity problems.
+     */
+    private static final String[] PARENT_PREFIXES = {
+        "java.", "javax.", "jdk.", "sun.", "com.sun.", "org.junit.", "junit.", "org.hamcrest."
+    };
+
+    public OverridingClassLoader() {
+    }
+
+    public OverridingClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    /**
+     * Returns whether the class is always loaded by the parent.
+     */
+    protected static boolean isParentClass(String name) {
+        for (String prefix : PARENT_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-        if (name.startsWith("java.")) {
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (isParentClass(name)) {
             return getParent().loadClass(name);
         }
         
-        Class<?> cls = findLoadedClass(name);
-        try {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> cls = findLoadedClass(name);
             if (cls == null) {
-                cls = findClass(name);
+                cls = defineClassIfFound(name);
             }
-        } catch (ClassNotFoundException e) {
-            return getParent().loadClass(name);
-        }
-        if (resolve) {
-            resolveClass(cls);
+            if (cls == null) {
+                return getParent().loadClass(name);
+            }
+            if (resolve) {
+                resolveClass(cls);
+            }
+            return cls;
         }
-        return cls;
     }
 }
@@ -0,0 +1,46 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Loads classes matching a set of package/class patterns itself and
+ * delegates others to its parent.
+ *
+ * <p>
+ * Useful for reloading all the classes of a multi-class exercise
+ * together while sharing JUnit, this library and everything else with
+ * the parent loader. See {@link ClassNameMatcher} for the pattern syntax.
+ */
+public class ScopedClassLoader extends OverridingClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final ClassNameMatcher matcher;
+
+    public ScopedClassLoader(String... includes) {
+        this(Arrays.asList(includes), Collections.<String>emptyList());
+    }
+
+    public ScopedClassLoader(Collection<String> includes, Collection<String> excludes) {
+        this.matcher = new ClassNameMatcher(includes, excludes);
+    }
+
+    /**
+     * Returns whether this loader loads the given class itself.
+     */
+    public boolean reloads(String className) {
+        return !isParentClass(className) && matcher.matches(className);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (reloads(name)) {
+            return super.loadClass(name, resolve);
+        } else {
+            return getParent().loadClass(name);
+        }
+    }
+}
@@ -4,6 +4,10 @@ package fi.helsinki.cs.tmc.edutestutils.classloaders;
  * Loads a specific class itself and delegates others to its parent.
  */
 public class SingleClassLoader extends OverridingClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+    
     private String nameOfClassToLoad;
 
     public SingleClassLoader(String nameOfClassToLoad) {
@@ -11,7 +15,7 @@ public class SingleClassLoader extends OverridingClassLoader {
     }
     
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
         if (name.equals(nameOfClassToLoad)) {
             return super.loadClass(name, resolve);
         } else {
@@ -0,0 +1,157 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Imposes test method specific limits on the number of bytes allocated on the heap.
+ * 
+ * <p>
+ * Usage:
+ * 
+ * <p>
+ * <code>
+ * import org.junit.Rule;<br>
+ * <br>
+ * public class MyTest {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&#64;Rule<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;public AllocationLimit allocationLimit = new AllocationLimit();<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;@Test<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;public void testSomething() {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;allocationLimit.set(64 * 1024 * 1024);<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;// test stuff<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;}<br>
+ * }
+ * </code>
+ * 
+ * <p>
+ * The total number of bytes allocated by the test is counted,
+ * not the amount of memory in use at any one time, so memory freed
+ * by the garbage collector still counts towards the limit.
+ * 
+ * <p>
+ * There is no limit unless a default limit is given as
+ * a constructor parameter. A test method may call {@link #set(long)}
+ * to set a test method specific limit, which is why the test is always
+ * run in a separate thread whose allocations are watched. If the limit is exceeded,
+ * the test will terminate with an {@link AllocationLimitException}
+ * and its thread will be terminated the same way as with {@link CpuTimeLimit}.
+ * 
+ * <p>
+ * <b>NOTE:</b> measuring allocations requires a JVM that implements
+ * {@code com.sun.management.ThreadMXBean}, such as HotSpot. Elsewhere
+ * a default limit or a call to {@link #set(long)} fails the test with an
+ * {@link UnsupportedOperationException}, and without them the rule does nothing.
+ * Allocations are sampled every few milliseconds, so a test may
+ * exceed its limit by whatever it manages to allocate in that time.
+ */
+public class AllocationLimit implements TestRule {
+    private final long defaultLimit;
+    
+    private volatile long limit = Long.MAX_VALUE;
+    private volatile boolean includeSpawnedThreads = false;
+    private volatile double terminationGracePeriod = 1.0;
+    
+    private volatile Watchdog.Watch currentWatch = null;
+    
+    /**
+     * Constructs an allocation limit rule with no default limit.
+     */
+    public AllocationLimit() {
+        this(Long.MAX_VALUE);
+    }
+    
+    /**
+     * Constructs an allocation limit rule with a default limit in bytes.
+     */
+    public AllocationLimit(long defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+    
+    /**
+     * Call this from a test method to set a limit in bytes for that method.
+     * 
+     * <p>
+     * The limit will only apply to the current test method.
+     * The default limit (if any) will be applied for any
+     * subsequent test methods.
+     */
+    public synchronized void set(long bytes) {
+        if (currentWatch == null && !Watchdog.ALLOCATED_BYTES.enable()) {
+            throw new UnsupportedOperationException("Measuring allocated memory is not supported by this JVM");
+        }
+        this.limit = bytes;
+        Watchdog.Watch watch = currentWatch;
+        if (watch != null) {
+            watch.setLimit(bytes);
+        }
+    }
+    
+    /**
+     * Sets whether memory allocated by threads started by the test counts towards the limit.
+     * 
+     * <p>
+     * See {@link CpuTimeLimit#setIncludeSpawnedThreads(boolean)}. Must be called before
+     * the test starts. Defaults to false.
+     */
+    public void setIncludeSpawnedThreads(boolean includeSpawnedThreads) {
+        this.includeSpawnedThreads = includeSpawnedThreads;
+    }
+    
+    /**
+     * Sets how long to wait, in seconds, before escalating the termination
+     * of a test that exceeded its limit.
+     * 
+     * <p>
+     * See {@link CpuTimeLimit#setTerminationGracePeriod(double)}. May also be called
+     * from the test method. Defaults to 1 second.
+     */
+    public void setTerminationGracePeriod(double seconds) {
+        this.terminationGracePeriod = seconds;
+    }
+    
+    /**
+     * Implements {@link TestRule}.
+     */
+    @Override
+    public Statement apply(final Statement statement, Description d) {
+        if (defaultLimit == Long.MAX_VALUE && !Watchdog.ALLOCATED_BYTES.enable()) {
+            // Nothing to enforce, and set() will fail.
+            return statement;
+        }
+        return new LimitedStatement(statement, Watchdog.ALLOCATED_BYTES) {
+            @Override
+            protected boolean isIncludingSpawnedThreads() {
+                return includeSpawnedThreads;
+            }
+            
+            @Override
+            protected double getTerminationGracePeriod() {
+                return terminationGracePeriod;
+            }
+            
+            @Override
+            public void evaluate() throws Throwable {
+                limit = defaultLimit;
+                super.evaluate();
+            }
+            
+            @Override
+            protected long getLimit() {
+                return limit;
+            }
+            
+            @Override
+            protected void setCurrentWatch(Watchdog.Watch watch) {
+                currentWatch = watch;
+            }
+            
+            @Override
+            protected Throwable createLimitExceededException() {
+                return new AllocationLimitException("Allocation limit (" + limit + " bytes) exceeded");
+            }
+        };
+    }
+}
@@ -0,0 +1,12 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+/**
+ * Thrown by {@link AllocationLimit} when a test allocates too much memory.
+ */
+public class AllocationLimitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    public AllocationLimitException(String message) {
+        super(message);
+    }
+}
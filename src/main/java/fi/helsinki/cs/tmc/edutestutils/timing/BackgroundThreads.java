@@ -0,0 +1,41 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+/**
+ * Creates the shared background threads of this package.
+ *
+ * <p>
+ * The threads are put in the top-level thread group and get no context
+ * class loader, so that they don't inherit either from whichever test
+ * happens to start them first. Otherwise a rule counting the threads of a
+ * test's group would count, and possibly stop, a shared thread, and the
+ * thread would keep the test's group and class loader from being collected.
+ */
+final class BackgroundThreads {
+
+    private static final ThreadGroup topGroup = topGroup();
+
+    private BackgroundThreads() {
+    }
+
+    private static ThreadGroup topGroup() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null) {
+            group = group.getParent();
+        }
+        return group;
+    }
+
+    static ThreadGroup getGroup() {
+        return topGroup;
+    }
+
+    /**
+     * Returns a new (unstarted) daemon thread.
+     */
+    static Thread newDaemonThread(Runnable r, String name) {
+        Thread t = new Thread(topGroup, r, name);
+        t.setDaemon(true);
+        t.setContextClassLoader(null);
+        return t;
+    }
+}
@@ -35,7 +35,8 @@ import org.junit.runners.model.Statement;
  * The rule does nothing unless a default timeout is given as
  * a constructor parameter. A test method may call {@link #set(double)}
  * to set a test method specific time limit. If the timeout expires,
- * the test will terminate with a {@link TimeLimitException}.
+ * the test will terminate with a {@link TimeLimitException}
+ * and its thread will be terminated (see {@link #setTerminationGracePeriod(double)}).
  * 
  * <p>
  * JUnit also has a {@link Timeout} rule which measures real time and
@@ -50,15 +51,22 @@ import org.junit.runners.model.Statement;
  * measurements with an accuracy of 10 milliseconds even though
  * wall clock measurements are much more accurate.
  * Ensure your time limits are lax enough to work on all major platforms.
+ * 
+ * <p>
+ * The CPU time of all tests is watched by a single background thread,
+ * which checks each test when its remaining time could have run out.
  */
 public class CpuTimeLimit implements TestRule {
-    private static final long TIMEOUT_CHECK_INTERVAL = 500; // How often to check whether we've timed out.
     private static final CpuStopwatch.Mode DEFAULT_STOPWATCH_MODE = CpuStopwatch.Mode.USER;
     
     private final double defaultTimeLimit;
     private final CpuStopwatch.Mode stopwatchMode;
     
     private volatile double timeLimit = Double.MAX_VALUE;
+    private volatile boolean includeSpawnedThreads = false;
+    private volatile double terminationGracePeriod = 1.0;
+    
+    private volatile Watchdog.Watch currentWatch = null;
     
     /**
      * Constructs a time limit rule with no default time limit and a user CPU time stopwatch.
@@ -99,6 +107,45 @@ public class CpuTimeLimit implements TestRule {
      */
     public synchronized void set(double limit) {
         this.timeLimit = limit;
+        Watchdog.Watch watch = currentWatch;
+        if (watch != null) {
+            watch.setLimit(Watchdog.toNanos(limit));
+        }
+    }
+    
+    /**
+     * Sets whether CPU time used by threads started by the test counts towards the limit.
+     * 
+     * <p>
+     * If enabled, the test runs in its own thread group and the CPU time of
+     * all threads in the group is summed. Threads started by the test join
+     * the group by default, but threads of shared pools, such as the common
+     * {@link java.util.concurrent.ForkJoinPool} used by parallel streams,
+     * generally do not. On a timeout, all threads in the group are interrupted.
+     * 
+     * <p>
+     * Unlike {@link #set(double)}, this must be called before the test starts,
+     * e.g. where the rule is created, since the test's thread is created with
+     * or without its own group. Defaults to false.
+     */
+    public void setIncludeSpawnedThreads(boolean includeSpawnedThreads) {
+        this.includeSpawnedThreads = includeSpawnedThreads;
+    }
+    
+    /**
+     * Sets how long to wait, in seconds, before escalating the termination
+     * of a test that exceeded its time limit.
+     * 
+     * <p>
+     * The test's threads are interrupted when the time limit is exceeded.
+     * Any still alive after the grace period are stopped, and any still
+     * alive after another grace period are reported to {@link RunawayThreads}.
+     * 
+     * <p>
+     * May also be called from the test method. Defaults to 1 second.
+     */
+    public void setTerminationGracePeriod(double seconds) {
+        this.terminationGracePeriod = seconds;
     }
     
     /**
@@ -106,31 +153,36 @@ public class CpuTimeLimit implements TestRule {
      */
     @Override
     public Statement apply(final Statement statement, Description d) {
-        return new Statement() {
+        return new LimitedStatement(statement, Watchdog.cpuTime(stopwatchMode)) {
+            @Override
+            protected boolean isIncludingSpawnedThreads() {
+                return includeSpawnedThreads;
+            }
+            
+            @Override
+            protected double getTerminationGracePeriod() {
+                return terminationGracePeriod;
+            }
+            
             @Override
             public void evaluate() throws Throwable {
                 timeLimit = defaultTimeLimit;
-                
-                TestThread thread = new TestThread(statement);
-                thread.start();
-                
-                CpuStopwatch stopwatch = createStopwatch(thread.getId());
-                while (!thread.finished && stopwatch.getElapsedTime() < timeLimit) {
-                    thread.join(TIMEOUT_CHECK_INTERVAL);
-                }
-                
-                Throwable exception = null;
-                if (thread.finished) {
-                    exception = thread.exceptionFromTest;
-                } else {
-                    exception = new TimeLimitException("Time limit (" + timeLimitString() + ") exceeded");
-                    exception.setStackTrace(thread.getStackTrace());
-                    thread.interrupt();
-                }
-                
-                if (exception != null) {
-                    throw exception;
-                }
+                super.evaluate();
+            }
+            
+            @Override
+            protected long getLimit() {
+                return Watchdog.toNanos(timeLimit);
+            }
+            
+            @Override
+            protected void setCurrentWatch(Watchdog.Watch watch) {
+                currentWatch = watch;
+            }
+            
+            @Override
+            protected Throwable createLimitExceededException() {
+                return new TimeLimitException("Time limit (" + timeLimitString() + ") exceeded");
             }
         };
     }
@@ -138,35 +190,4 @@ public class CpuTimeLimit implements TestRule {
     private String timeLimitString() {
         return new DecimalFormat("#.###s").format(timeLimit);
     }
-    
-    private CpuStopwatch createStopwatch(long threadId) {
-        return new CpuStopwatch(stopwatchMode, threadId);
-    }
-
-    
-    private static class TestThread extends Thread {
-        private final Statement statement;
-        
-        public boolean finished = false;
-        public Throwable exceptionFromTest = null;
-
-        public TestThread(Statement statement) {
-            super("TimeLimit.TestThread");
-            this.statement = statement;
-        }
-
-        @Override
-        public void run() {
-            try {
-                statement.evaluate();
-            } catch (InterruptedException e) {
-                // Most likely sent by us after a timeout
-            } catch (Throwable e) {
-                exceptionFromTest = e;
-            } finally {
-                finished = true;
-            }
-        }
-    }
-    
 }
@@ -0,0 +1,195 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.runners.model.Statement;
+
+/**
+ * Runs a test in a new thread watched by the {@link Watchdog}.
+ *
+ * <p>
+ * The calling thread waits until the test finishes or exceeds its limit.
+ * In the latter case the exception from {@link #createLimitExceededException()}
+ * is thrown and the test's threads are terminated by {@link RunawayThreads}.
+ */
+abstract class LimitedStatement extends Statement {
+    private static final long WATCHDOG_FALLBACK_MILLIS = 1000;
+    private static final int MAX_IDLE_GROUPS = 64;
+    
+    // Thread groups of finished tests. They are reused because a parent group
+    // may keep its child groups until they're destroyed, which newer JDKs no
+    // longer support. A group is reused once its threads have all died.
+    private static final List<ThreadGroup> idleGroups = new ArrayList<ThreadGroup>();
+    
+    private final Statement statement;
+    private final Watchdog.Meter meter;
+    
+    // Notified when the test finishes or exceeds its limit.
+    private final Object monitor = new Object();
+    private boolean exceeded = false;
+
+    LimitedStatement(Statement statement, Watchdog.Meter meter) {
+        this.statement = statement;
+        this.meter = meter;
+    }
+
+    /**
+     * Returns whether threads started by the test count towards the limit.
+     * Read when the test starts.
+     */
+    protected abstract boolean isIncludingSpawnedThreads();
+
+    /**
+     * Returns the termination grace period in seconds. Read when the limit is exceeded.
+     */
+    protected abstract double getTerminationGracePeriod();
+
+    /**
+     * Returns the current limit in the meter's units.
+     */
+    protected abstract long getLimit();
+
+    /**
+     * Called with the watch when the test starts and with null when it ends,
+     * so that the limit can be changed during the test.
+     */
+    protected abstract void setCurrentWatch(Watchdog.Watch watch);
+
+    protected abstract Throwable createLimitExceededException();
+
+    @Override
+    public void evaluate() throws Throwable {
+        synchronized (monitor) {
+            exceeded = false;
+        }
+        ThreadGroup group = isIncludingSpawnedThreads() ? takeGroup() : null;
+        try {
+            run(group);
+        } finally {
+            if (group != null) {
+                releaseGroup(group);
+            }
+        }
+    }
+    
+    private void run(ThreadGroup group) throws Throwable {
+        TestThread thread = new TestThread(group, statement, monitor);
+        thread.start();
+        
+        Watchdog.Listener listener = new Watchdog.Listener() {
+            @Override
+            public void limitExceeded(Watchdog.Watch watch) {
+                synchronized (monitor) {
+                    exceeded = true;
+                    monitor.notifyAll();
+                }
+            }
+        };
+        Watchdog.Watch watch;
+        if (group != null) {
+            watch = Watchdog.getShared().watch(group, meter, getLimit(), listener);
+        } else {
+            watch = Watchdog.getShared().watch(thread.getId(), meter, getLimit(), listener);
+        }
+        setCurrentWatch(watch);
+        watch.setLimit(getLimit()); // In case the limit changed before the watch was set
+        try {
+            while (true) {
+                synchronized (monitor) {
+                    if (thread.finished || exceeded || watch.isExceeded()) {
+                        break;
+                    }
+                    monitor.wait(WATCHDOG_FALLBACK_MILLIS);
+                }
+                // In case the watchdog thread has died, e.g. of an OutOfMemoryError.
+                watch.ensureChecked();
+            }
+        } finally {
+            setCurrentWatch(null);
+            watch.cancel();
+        }
+        
+        Throwable exception = null;
+        if (thread.finished) {
+            thread.join(); // So that the group is empty for reuse
+            exception = thread.exceptionFromTest;
+        } else {
+            exception = createLimitExceededException();
+            exception.setStackTrace(thread.getStackTrace());
+            long gracePeriodMillis = (long)(getTerminationGracePeriod() * 1000);
+            RunawayThreads.terminate(threadsToTerminate(group, thread), gracePeriodMillis);
+        }
+        
+        if (exception != null) {
+            throw exception;
+        }
+    }
+    
+    /**
+     * Returns an empty group under the current thread's group, reusing one
+     * released by an earlier test if possible.
+     */
+    private static ThreadGroup takeGroup() {
+        ThreadGroup parent = Thread.currentThread().getThreadGroup();
+        synchronized (idleGroups) {
+            // Most recently released first, since older ones are more likely
+            // to still have threads or to have been left behind by runaways.
+            for (int i = idleGroups.size() - 1; i >= 0; --i) {
+                ThreadGroup group = idleGroups.get(i);
+                if (group.getParent() == parent && group.activeCount() == 0) {
+                    idleGroups.remove(i);
+                    return group;
+                }
+            }
+        }
+        return new ThreadGroup("TimeLimit.TestThreads");
+    }
+    
+    private static void releaseGroup(ThreadGroup group) {
+        synchronized (idleGroups) {
+            if (idleGroups.size() < MAX_IDLE_GROUPS) {
+                idleGroups.add(group);
+            }
+        }
+    }
+    
+    private static Thread[] threadsToTerminate(ThreadGroup group, Thread thread) {
+        if (group == null) {
+            return new Thread[] { thread };
+        }
+        Thread[] threads = new Thread[group.activeCount() + 8];
+        int count = group.enumerate(threads, true);
+        return Arrays.copyOf(threads, count);
+    }
+    
+    private static class TestThread extends Thread {
+        private final Statement statement;
+        private final Object monitor;
+        
+        public volatile boolean finished = false;
+        public volatile Throwable exceptionFromTest = null;
+
+        public TestThread(ThreadGroup group, Statement statement, Object monitor) {
+            super(group, "TimeLimit.TestThread");
+            this.statement = statement;
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                statement.evaluate();
+            } catch (InterruptedException e) {
+                // Most likely sent by us after a timeout
+            } catch (Throwable e) {
+                exceptionFromTest = e;
+            } finally {
+                synchronized (monitor) {
+                    finished = true;
+                    monitor.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Terminates threads of tests that exceeded their time limit and keeps track
+ * of those that couldn't be terminated.
+ *
+ * <p>
+ * Threads are first interrupted. Threads still alive after a grace period are
+ * stopped with {@link Thread#stop()} where the JVM still supports it. Threads
+ * still alive after another grace period are considered runaways: the JVM is
+ * marked poisoned, since they will keep using CPU time for the rest of its life,
+ * and listeners are notified so that a test runner can recycle the JVM.
+ */
+public final class RunawayThreads {
+
+    /**
+     * Notified on a background thread when the JVM becomes poisoned
+     * or more runaway threads are found.
+     */
+    public interface Listener {
+        void runawayThreadsFound(List<Thread> runaways);
+    }
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private static final List<Thread> runaways = new CopyOnWriteArrayList<Thread>();
+    private static volatile boolean poisoned = false;
+    private static volatile Integer exitStatus = null;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return BackgroundThreads.newDaemonThread(r, "TimeLimit.Terminator");
+        }
+    });
+
+    private RunawayThreads() {
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Tells whether a thread that couldn't be terminated has been found.
+     */
+    public static boolean isJvmPoisoned() {
+        return poisoned;
+    }
+
+    /**
+     * Returns the runaway threads that are still alive.
+     */
+    public static List<Thread> getRunawayThreads() {
+        List<Thread> result = new ArrayList<Thread>();
+        for (Thread t : runaways) {
+            if (t.isAlive()) {
+                result.add(t);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Makes the JVM exit with the given status after listeners have been
+     * notified of runaway threads. Null (the default) disables this.
+     */
+    public static void setExitStatusOnPoison(Integer status) {
+        exitStatus = status;
+    }
+
+    /**
+     * Forgets the runaway threads found so far and clears the poisoned flag. For tests.
+     */
+    static void reset() {
+        runaways.clear();
+        poisoned = false;
+    }
+
+    /**
+     * Interrupts the threads and escalates as described above.
+     */
+    static void terminate(final Thread[] threads, final long gracePeriodMillis) {
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean anyAlive = false;
+                for (Thread t : threads) {
+                    if (t.isAlive()) {
+                        anyAlive = true;
+                        stop(t);
+                    }
+                }
+                if (anyAlive) {
+                    executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            checkStopped(threads);
+                        }
+                    }, gracePeriodMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, gracePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void stop(Thread t) {
+        try {
+            t.stop();
+        } catch (UnsupportedOperationException e) {
+            // Newer JVMs no longer support stopping threads.
+        } catch (SecurityException e) {
+        }
+    }
+
+    /**
+     * Reports the threads that are still alive and returns what the listeners threw.
+     * A failing listener doesn't keep the others from being notified.
+     */
+    static List<Throwable> checkStopped(Thread[] threads) {
+        List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> found = new ArrayList<Thread>();
+        for (Thread t : threads) {
+            if (t.isAlive()) {
+                found.add(t);
+            }
+        }
+        if (found.isEmpty()) {
+            return failures;
+        }
+        runaways.addAll(found);
+        poisoned = true;
+        List<Thread> unmodifiable = Collections.unmodifiableList(found);
+        for (Listener listener : listeners) {
+            try {
+                listener.runawayThreadsFound(unmodifiable);
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        }
+        Integer status = exitStatus;
+        if (status != null) {
+            System.exit(status);
+        }
+        return failures;
+    }
+}
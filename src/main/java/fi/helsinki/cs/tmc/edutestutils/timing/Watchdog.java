@@ -0,0 +1,500 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A single background thread that watches the resource usage of many threads.
+ *
+ * <p>
+ * Each watched thread has a budget of some resource measured by a {@link Meter},
+ * such as CPU time. The watchdog keeps the watches in a priority queue ordered
+ * by the earliest time each budget could run out. For CPU time, that is when
+ * the remaining budget has passed in real time, since a thread can't use
+ * CPU time faster than that. When watches are due, their threads are sampled
+ * in one batch if the JVM supports it. Watches whose budget has been used up
+ * are notified, the rest are rescheduled.
+ *
+ * <p>
+ * A watch may cover a whole thread group, in which case the usage of
+ * all threads in it, including ones started after the watch and ones that
+ * have since died, is summed. The usage of a thread that has died is counted
+ * up to the last time it was sampled, so groups are sampled at least every
+ * 10ms. Threads that live less than that may go unnoticed.
+ */
+final class Watchdog {
+
+    private static final Watchdog shared = new Watchdog();
+    private static final long MIN_GROUP_CHECK_INTERVAL = 1000000; // 1ms
+    private static final long MAX_GROUP_CHECK_INTERVAL = 10000000; // 10ms
+    private static final long ALLOCATION_CHECK_INTERVAL = 5000000; // 5ms
+    private static final long RETRY_INTERVAL = 10000000; // 10ms
+
+    static Watchdog getShared() {
+        return shared;
+    }
+
+    /**
+     * Measures a resource used by threads.
+     */
+    abstract static class Meter {
+        /**
+         * Returns the usage of each thread so far, -1 for threads that are not alive.
+         */
+        abstract long[] sample(long[] ids);
+
+        /**
+         * Returns how many nanoseconds may pass before the remaining budget could run out.
+         */
+        abstract long checkInterval(long remaining, boolean group);
+
+        /**
+         * Enables the measurement and returns whether the JVM supports it.
+         */
+        abstract boolean enable();
+    }
+
+    private static final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean extendedBean = extendedBean();
+
+    private static com.sun.management.ThreadMXBean extendedBean() {
+        try {
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return (com.sun.management.ThreadMXBean)bean;
+            }
+        } catch (LinkageError e) {
+            // Not a JVM with the extended interface
+        }
+        return null;
+    }
+
+    private static final class CpuMeter extends Meter {
+        private final CpuStopwatch.Mode mode;
+
+        CpuMeter(CpuStopwatch.Mode mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        long[] sample(long[] ids) {
+            long[] cpu = (mode != CpuStopwatch.Mode.USER) ? cpuTimes(ids) : null;
+            long[] user = (mode != CpuStopwatch.Mode.BOTH) ? userTimes(ids) : null;
+            switch (mode) {
+                case USER:
+                    return user;
+                case BOTH:
+                    return cpu;
+                default:
+                    long[] system = new long[ids.length];
+                    for (int i = 0; i < ids.length; ++i) {
+                        system[i] = (cpu[i] < 0 || user[i] < 0) ? -1 : cpu[i] - user[i];
+                    }
+                    return system;
+            }
+        }
+
+        @Override
+        long checkInterval(long remaining, boolean group) {
+            if (!group) {
+                return remaining;
+            }
+            // Threads of a group may use CPU time on all processors at once,
+            // and threads must be sampled before they die to be counted.
+            long interval = remaining / Runtime.getRuntime().availableProcessors();
+            return Math.max(Math.min(interval, MAX_GROUP_CHECK_INTERVAL), MIN_GROUP_CHECK_INTERVAL);
+        }
+
+        @Override
+        boolean enable() {
+            if (!CpuStopwatch.isSupported()) {
+                return false;
+            }
+            bean.setThreadCpuTimeEnabled(true);
+            return true;
+        }
+
+        private long[] cpuTimes(long[] ids) {
+            if (extendedBean != null) {
+                return extendedBean.getThreadCpuTime(ids);
+            }
+            long[] result = new long[ids.length];
+            for (int i = 0; i < ids.length; ++i) {
+                result[i] = bean.getThreadCpuTime(ids[i]);
+            }
+            return result;
+        }
+
+        private long[] userTimes(long[] ids) {
+            if (extendedBean != null) {
+                return extendedBean.getThreadUserTime(ids);
+            }
+            long[] result = new long[ids.length];
+            for (int i = 0; i < ids.length; ++i) {
+                result[i] = bean.getThreadUserTime(ids[i]);
+            }
+            return result;
+        }
+    }
+
+    private static final Meter[] cpuMeters = {
+        new CpuMeter(CpuStopwatch.Mode.USER),
+        new CpuMeter(CpuStopwatch.Mode.SYSTEM),
+        new CpuMeter(CpuStopwatch.Mode.BOTH)
+    };
+
+    /**
+     * Returns a meter for CPU time in nanoseconds.
+     */
+    static Meter cpuTime(CpuStopwatch.Mode mode) {
+        return cpuMeters[mode.ordinal()];
+    }
+
+    /**
+     * A meter for bytes allocated on the heap.
+     */
+    static final Meter ALLOCATED_BYTES = new Meter() {
+        @Override
+        long[] sample(long[] ids) {
+            return extendedBean.getThreadAllocatedBytes(ids);
+        }
+
+        @Override
+        long checkInterval(long remaining, boolean group) {
+            // There's no upper bound on the allocation rate.
+            return ALLOCATION_CHECK_INTERVAL;
+        }
+
+        @Override
+        boolean enable() {
+            if (extendedBean == null || !extendedBean.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            extendedBean.setThreadAllocatedMemoryEnabled(true);
+            return true;
+        }
+    };
+
+    /**
+     * Something to do when a budget has been used up. Called on the watchdog thread.
+     */
+    interface Listener {
+        void limitExceeded(Watch watch);
+    }
+
+    /**
+     * A budget for a thread or a thread group.
+     */
+    final class Watch implements Comparable<Watch> {
+        private final long threadId;
+        private final ThreadGroup group;
+        private final Meter meter;
+        private final Listener listener;
+        // Usage of threads at the start and when last seen alive, by thread id.
+        private final Map<Long, Long> startUsages = new HashMap<Long, Long>();
+        private final Map<Long, Long> lastUsages = new HashMap<Long, Long>();
+        private long limit;
+        private long nextCheck;
+        private boolean queued = false;
+        private boolean active = true;
+        private volatile boolean exceeded = false;
+
+        private Watch(long threadId, ThreadGroup group, Meter meter, Listener listener) {
+            this.threadId = threadId;
+            this.group = group;
+            this.meter = meter;
+            this.listener = listener;
+        }
+
+        /**
+         * Returns the ids of the threads to sample.
+         */
+        private long[] threadIds() {
+            if (group == null) {
+                return new long[] { threadId };
+            }
+            Thread[] threads = new Thread[group.activeCount() + 8];
+            int count = group.enumerate(threads, true);
+            while (count == threads.length) {
+                threads = new Thread[threads.length * 2];
+                count = group.enumerate(threads, true);
+            }
+            long[] ids = new long[count];
+            for (int i = 0; i < count; ++i) {
+                ids[i] = threads[i].getId();
+            }
+            return ids;
+        }
+
+        /**
+         * Records sampled usages and returns whether any thread was alive.
+         */
+        private boolean update(long[] ids, long[] usages, int offset) {
+            boolean alive = false;
+            for (int i = 0; i < ids.length; ++i) {
+                long usage = usages[offset + i];
+                if (usage >= 0) {
+                    alive = true;
+                    lastUsages.put(ids[i], usage);
+                }
+            }
+            return alive;
+        }
+
+        /**
+         * Returns the total usage since the start of the watch.
+         */
+        private long used() {
+            long sum = 0;
+            for (Map.Entry<Long, Long> entry : lastUsages.entrySet()) {
+                Long start = startUsages.get(entry.getKey());
+                sum += entry.getValue() - ((start != null) ? start : 0);
+            }
+            return sum;
+        }
+
+        /**
+         * Changes the budget. It's checked again immediately.
+         *
+         * @param limit The new budget in the meter's units. {@code Long.MAX_VALUE} for none.
+         */
+        public void setLimit(long limit) {
+            synchronized (Watchdog.this) {
+                if (!active) {
+                    return;
+                }
+                unschedule();
+                this.limit = limit;
+                schedule(System.nanoTime());
+            }
+        }
+
+        /**
+         * Tells whether the budget has been used up.
+         */
+        boolean isExceeded() {
+            return exceeded;
+        }
+
+        /**
+         * Checks the budget soon unless a check is already scheduled,
+         * restarting the watchdog thread if it has died.
+         */
+        void ensureChecked() {
+            synchronized (Watchdog.this) {
+                if (active && !queued) {
+                    schedule(System.nanoTime());
+                }
+                ensureThread();
+            }
+        }
+
+        /**
+         * Stops watching.
+         */
+        public void cancel() {
+            synchronized (Watchdog.this) {
+                active = false;
+                unschedule();
+            }
+        }
+
+        private void schedule(long time) {
+            if (limit != Long.MAX_VALUE) {
+                nextCheck = time;
+                queued = true;
+                queue.add(this);
+            }
+            Watchdog.this.notifyAll();
+        }
+
+        private void unschedule() {
+            if (queued) {
+                queue.remove(this);
+                queued = false;
+            }
+        }
+
+        @Override
+        public int compareTo(Watch other) {
+            return (nextCheck < other.nextCheck) ? -1 : ((nextCheck == other.nextCheck) ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Watch> queue = new PriorityQueue<Watch>();
+    private Thread thread;
+
+    private Watchdog() {
+    }
+
+    /**
+     * Converts seconds to nanoseconds, or {@code Long.MAX_VALUE} if too large.
+     */
+    static long toNanos(double seconds) {
+        double nanos = seconds * 1000000000.0;
+        return (nanos >= Long.MAX_VALUE) ? Long.MAX_VALUE : (long)nanos;
+    }
+
+    /**
+     * Starts watching a (started) thread.
+     *
+     * @param limit The budget in the meter's units. {@code Long.MAX_VALUE} for none.
+     * @throws UnsupportedOperationException If the JVM doesn't support the meter.
+     */
+    public Watch watch(long threadId, Meter meter, long limit, Listener listener) {
+        return start(new Watch(threadId, null, meter, listener), limit);
+    }
+
+    /**
+     * Starts watching the total usage of the threads in a group.
+     *
+     * <p>
+     * Usage by threads already in the group before this call is not counted.
+     *
+     * @param limit The budget in the meter's units. {@code Long.MAX_VALUE} for none.
+     * @throws UnsupportedOperationException If the JVM doesn't support the meter.
+     */
+    public Watch watch(ThreadGroup group, Meter meter, long limit, Listener listener) {
+        return start(new Watch(-1, group, meter, listener), limit);
+    }
+
+    private Watch start(Watch watch, long limit) {
+        if (!watch.meter.enable()) {
+            throw new UnsupportedOperationException("Measuring threads' resource usage is not supported by this JVM");
+        }
+        long[] ids = watch.threadIds();
+        watch.update(ids, watch.meter.sample(ids), 0);
+        watch.startUsages.putAll(watch.lastUsages);
+        synchronized (this) {
+            watch.limit = limit;
+            watch.schedule(System.nanoTime());
+            ensureThread();
+        }
+        return watch;
+    }
+
+    private synchronized void ensureThread() {
+        if (thread == null || !thread.isAlive()) {
+            thread = BackgroundThreads.newDaemonThread(new Runnable() {
+                @Override
+                public void run() {
+                    runWatchdog();
+                }
+            }, "Watchdog");
+            thread.start();
+        }
+    }
+
+    private void runWatchdog() {
+        while (true) {
+            List<Watch> due = new ArrayList<Watch>();
+            try {
+                takeDue(due);
+                check(due);
+            } catch (InterruptedException e) {
+            } catch (Throwable t) {
+                // E.g. an OutOfMemoryError caused by a test. Try the watches again soon.
+                retry(due);
+            }
+        }
+    }
+
+    private synchronized void retry(List<Watch> due) {
+        long time = System.nanoTime() + RETRY_INTERVAL;
+        for (Watch watch : due) {
+            if (watch.active && !watch.queued) {
+                watch.schedule(time);
+            }
+        }
+    }
+
+    private synchronized void takeDue(List<Watch> due) throws InterruptedException {
+        while (true) {
+            Watch first = queue.peek();
+            long now = System.nanoTime();
+            if (first == null) {
+                wait();
+            } else if (first.nextCheck - now > 0) {
+                long waitNanos = first.nextCheck - now;
+                wait(waitNanos / 1000000, (int)(waitNanos % 1000000));
+            } else {
+                break;
+            }
+        }
+        long now = System.nanoTime();
+        while (!queue.isEmpty() && queue.peek().nextCheck - now <= 0) {
+            Watch watch = queue.poll();
+            watch.queued = false;
+            due.add(watch);
+        }
+    }
+
+    private void check(List<Watch> due) {
+        while (!due.isEmpty()) {
+            Meter meter = due.get(0).meter;
+            List<Watch> sameMeter = new ArrayList<Watch>();
+            List<Watch> others = new ArrayList<Watch>();
+            for (Watch watch : due) {
+                (watch.meter == meter ? sameMeter : others).add(watch);
+            }
+            check(sameMeter, meter);
+            due = others;
+        }
+    }
+
+    private void check(List<Watch> watches, Meter meter) {
+        // Sample the threads of all the watches in one call.
+        long[][] idsByWatch = new long[watches.size()][];
+        int total = 0;
+        for (int i = 0; i < idsByWatch.length; ++i) {
+            idsByWatch[i] = watches.get(i).threadIds();
+            total += idsByWatch[i].length;
+        }
+        long[] allIds = new long[total];
+        int offset = 0;
+        for (long[] ids : idsByWatch) {
+            System.arraycopy(ids, 0, allIds, offset, ids.length);
+            offset += ids.length;
+        }
+        long[] usages = meter.sample(allIds);
+        long now = System.nanoTime();
+
+        List<Watch> exceeded = new ArrayList<Watch>();
+        synchronized (this) {
+            offset = 0;
+            for (int i = 0; i < idsByWatch.length; ++i) {
+                Watch watch = watches.get(i);
+                boolean alive = watch.update(idsByWatch[i], usages, offset);
+                offset += idsByWatch[i].length;
+                if (!watch.active || watch.queued) {
+                    continue; // Cancelled or rescheduled by setLimit meanwhile
+                }
+                if (!alive && watch.group == null) {
+                    watch.active = false; // The thread has died
+                    continue;
+                }
+                long remaining = watch.limit - watch.used();
+                if (remaining <= 0) {
+                    watch.active = false;
+                    exceeded.add(watch);
+                } else {
+                    watch.schedule(now + meter.checkInterval(remaining, watch.group != null));
+                }
+            }
+        }
+
+        for (Watch watch : exceeded) {
+            watch.exceeded = true;
+            try {
+                watch.listener.limitExceeded(watch);
+            } catch (Throwable t) {
+                // Don't let a broken listener stop the watchdog.
+                // The owner of the watch can still see it in isExceeded().
+            }
+        }
+    }
+}
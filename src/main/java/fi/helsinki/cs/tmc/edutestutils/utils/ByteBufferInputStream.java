@@ -0,0 +1,94 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the remaining bytes of a {@link ByteBuffer} without copying them.
+ *
+ * <p>
+ * The position of the given buffer is not changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    public ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf.duplicate();
+    }
+
+    /**
+     * Creates a stream that reads a file through a read-only memory mapping.
+     *
+     * <p>
+     * The file's contents are paged in by the OS as they are read
+     * instead of being copied onto the heap.
+     *
+     * @throws IOException If the file cannot be opened or mapped.
+     * @throws IllegalArgumentException If the file is too large to map (over 2GB).
+     */
+    public static ByteBufferInputStream map(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File too large to map: " + path);
+            }
+            // The mapping stays valid after the channel is closed.
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public synchronized int read() {
+        return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public synchronized long skip(long n) {
+        int skipped = (int)Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buf.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        buf.mark();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        buf.reset();
+    }
+}
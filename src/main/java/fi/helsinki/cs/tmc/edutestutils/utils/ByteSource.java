@@ -0,0 +1,20 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+
+/**
+ * A growing sequence of bytes that can be read at any position.
+ */
+public interface ByteSource {
+    /**
+     * Returns the number of bytes currently available.
+     */
+    long size();
+
+    /**
+     * Copies bytes starting at {@code position} into {@code dst}.
+     *
+     * @return The number of bytes copied, or -1 if {@code position} is at the end.
+     */
+    int read(long position, byte[] dst, int off, int len) throws IOException;
+}
@@ -0,0 +1,399 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * An output stream that collects everything written to it, up to a limit.
+ *
+ * <p>
+ * Works like a {@link java.io.ByteArrayOutputStream} until the number of bytes
+ * kept in memory reaches the limit. What happens after that is determined by
+ * the {@link OverflowPolicy}.
+ *
+ * <p>
+ * All methods are thread-safe.
+ */
+public class CaptureBuffer extends OutputStream implements ByteSource {
+
+    /**
+     * What a {@link CaptureBuffer} does when its memory limit is reached.
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Keeps the output up to the limit, appends {@link #TRUNCATION_MARKER}
+         * and discards everything after that.
+         */
+        TRUNCATE,
+        /**
+         * Throws an {@link OutputLimitExceededException} from the write
+         * that exceeds the limit and from all writes after that.
+         */
+        FAIL,
+        /**
+         * Writes everything past the limit into a temporary file.
+         * The file is deleted by {@link CaptureBuffer#close()} or {@link CaptureBuffer#reset()}.
+         */
+        SPILL_TO_DISK
+    }
+
+    /**
+     * Appended to the output when it is truncated.
+     */
+    public static final String TRUNCATION_MARKER = "\n[output truncated]\n";
+
+    /**
+     * The largest possible memory limit, meaning effectively no limit.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE - 64;
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final byte[] MARKER_BYTES = TRUNCATION_MARKER.getBytes(Charset.forName("US-ASCII"));
+
+    private int memoryLimit;
+    private OverflowPolicy policy;
+
+    private byte[] mem = new byte[0];
+    private int memCount = 0;
+
+    private File spillFile;
+    private FileChannel spillChannel;
+    private long spillCount = 0;
+
+    private boolean truncated = false;
+    private boolean limitExceeded = false;
+
+    private int waiters = 0;
+
+    /**
+     * Creates a buffer with no limit.
+     */
+    public CaptureBuffer() {
+        this(UNLIMITED, OverflowPolicy.FAIL);
+    }
+
+    /**
+     * Creates a buffer that keeps at most {@code memoryLimit} bytes in memory.
+     */
+    public CaptureBuffer(int memoryLimit, OverflowPolicy policy) {
+        setLimit(memoryLimit, policy);
+    }
+
+    /**
+     * Changes the limit. Affects only bytes written after this call.
+     */
+    public synchronized void setLimit(int memoryLimit, OverflowPolicy policy) {
+        if (memoryLimit < 0 || memoryLimit > UNLIMITED) {
+            throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Overflow policy may not be null");
+        }
+        this.memoryLimit = Math.max(memoryLimit, memCount);
+        this.policy = policy;
+    }
+
+    public synchronized int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (memCount < memoryLimit && spillCount == 0 && !truncated && !limitExceeded) {
+            ensureCapacity(memCount + 1);
+            mem[memCount++] = (byte)b;
+            wakeWaiters();
+        } else {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (truncated) {
+            return;
+        }
+        if (limitExceeded) {
+            throw outputLimitExceeded();
+        }
+
+        if (spillCount == 0) {
+            int toMem = Math.min(len, memoryLimit - memCount);
+            appendToMemory(b, off, toMem);
+            off += toMem;
+            len -= toMem;
+            wakeWaiters();
+        }
+
+        if (len > 0) {
+            switch (policy) {
+                case TRUNCATE:
+                    appendToMemory(MARKER_BYTES, 0, MARKER_BYTES.length);
+                    truncated = true;
+                    break;
+                case FAIL:
+                    limitExceeded = true;
+                    throw outputLimitExceeded();
+                case SPILL_TO_DISK:
+                    spill(b, off, len);
+                    wakeWaiters();
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid policy");
+            }
+        }
+    }
+
+    private OutputLimitExceededException outputLimitExceeded() {
+        return new OutputLimitExceededException("Output limit exceeded: more than " + memoryLimit + " bytes printed");
+    }
+
+    private void appendToMemory(byte[] b, int off, int len) {
+        ensureCapacity(memCount + len);
+        System.arraycopy(b, off, mem, memCount, len);
+        memCount += len;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > mem.length) {
+            long newCapacity = Math.max(Math.max(INITIAL_CAPACITY, 2L * mem.length), needed);
+            newCapacity = Math.min(newCapacity, Math.max(needed, (long)memoryLimit + MARKER_BYTES.length));
+            byte[] newMem = new byte[(int)newCapacity];
+            System.arraycopy(mem, 0, newMem, 0, memCount);
+            mem = newMem;
+        }
+    }
+
+    private void spill(byte[] b, int off, int len) throws IOException {
+        if (spillChannel == null) {
+            spillFile = File.createTempFile("edu-test-utils-output", ".tmp");
+            spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+        }
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        while (src.hasRemaining()) {
+            spillCount += spillChannel.write(src, spillCount);
+        }
+    }
+
+    private void wakeWaiters() {
+        if (waiters > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until more than {@code knownSize} bytes have been captured.
+     *
+     * @param knownSize The size the caller has already seen.
+     * @param timeoutMillis The maximum time to wait. Zero means no timeout.
+     * @return Whether the buffer has grown past {@code knownSize}.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized boolean awaitGrowth(long knownSize, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        waiters++;
+        try {
+            while (size() <= knownSize) {
+                long wait = 0;
+                if (timeoutMillis > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                }
+                wait(wait);
+            }
+            return true;
+        } finally {
+            waiters--;
+        }
+    }
+
+    /**
+     * Finds the first occurrence of {@code pattern} at or after {@code from}.
+     *
+     * @return The position of the match, or -1 if none was found.
+     */
+    public synchronized long indexOf(byte[] pattern, long from) throws IOException {
+        long total = size();
+        from = Math.max(0, from);
+        if (pattern.length == 0) {
+            return (from <= total) ? from : -1;
+        }
+        byte[] chunk = new byte[Math.max(8192, 2 * pattern.length)];
+        while (from + pattern.length <= total) {
+            int n;
+            byte[] data;
+            int dataOff;
+            if (from + pattern.length <= memCount) {
+                // Search memory in place.
+                data = mem;
+                dataOff = (int)from;
+                n = memCount - dataOff;
+            } else {
+                data = chunk;
+                dataOff = 0;
+                n = read(from, chunk, 0, chunk.length);
+            }
+            int last = n - pattern.length;
+            for (int i = 0; i <= last; ++i) {
+                if (matchesAt(data, dataOff + i, pattern)) {
+                    return from + i;
+                }
+            }
+            from += last + 1;
+        }
+        return -1;
+    }
+
+    private static boolean matchesAt(byte[] data, int off, byte[] pattern) {
+        for (int j = 0; j < pattern.length; ++j) {
+            if (data[off + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes captured, including any spilled to disk.
+     */
+    @Override
+    public synchronized long size() {
+        return memCount + spillCount;
+    }
+
+    /**
+     * Tells whether output was discarded due to {@link OverflowPolicy#TRUNCATE}.
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Tells whether a write failed due to {@link OverflowPolicy#FAIL}.
+     */
+    public synchronized boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    /**
+     * Copies the captured bytes starting at {@code position} into {@code dst}.
+     *
+     * @return The number of bytes copied, or -1 if {@code position} is at the end.
+     */
+    @Override
+    public synchronized int read(long position, byte[] dst, int off, int len) throws IOException {
+        long total = memCount + spillCount;
+        if (position >= total) {
+            return -1;
+        }
+        len = (int)Math.min(len, total - position);
+        int copied = 0;
+        if (position < memCount) {
+            copied = (int)Math.min(len, memCount - position);
+            System.arraycopy(mem, (int)position, dst, off, copied);
+        }
+        if (copied < len) {
+            ByteBuffer buf = ByteBuffer.wrap(dst, off + copied, len - copied);
+            long filePos = position + copied - memCount;
+            while (buf.hasRemaining()) {
+                int n = spillChannel.read(buf, filePos);
+                if (n < 0) {
+                    break;
+                }
+                filePos += n;
+            }
+            copied = len - buf.remaining();
+        }
+        return copied;
+    }
+
+    /**
+     * Returns a copy of everything captured.
+     *
+     * @throws IllegalStateException if the output is too large to fit into an array.
+     */
+    public synchronized byte[] toByteArray() {
+        long total = size();
+        if (total > UNLIMITED) {
+            throw new IllegalStateException("Captured output is too large to fit into memory: " + total + " bytes");
+        }
+        byte[] result = new byte[(int)total];
+        try {
+            int pos = 0;
+            while (pos < result.length) {
+                pos += read(pos, result, pos, result.length - pos);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes everything captured into a string.
+     */
+    public synchronized String toString(Charset charset) {
+        if (spillCount == 0) {
+            return new String(mem, 0, memCount, charset);
+        } else {
+            return new String(toByteArray(), charset);
+        }
+    }
+
+    /**
+     * Decodes everything captured into a string using the platform default charset.
+     */
+    @Override
+    public String toString() {
+        return toString(Charset.defaultCharset());
+    }
+
+    /**
+     * Discards everything captured so far and deletes any temporary file.
+     * The buffer remains usable.
+     */
+    public synchronized void reset() {
+        releaseSpillFile();
+        mem = new byte[0];
+        memCount = 0;
+        spillCount = 0;
+        truncated = false;
+        limitExceeded = false;
+    }
+
+    /**
+     * Deletes any temporary file. Data spilled to disk is lost,
+     * but data in memory stays readable.
+     */
+    @Override
+    public synchronized void close() {
+        releaseSpillFile();
+        spillCount = 0;
+    }
+
+    private void releaseSpillFile() {
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+            }
+            spillFile.delete();
+            spillChannel = null;
+            spillFile = null;
+        }
+    }
+}
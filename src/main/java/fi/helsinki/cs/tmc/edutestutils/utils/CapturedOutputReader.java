@@ -0,0 +1,145 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a range of a {@link ByteSource}, such as a {@link CaptureBuffer}, incrementally.
+ *
+ * <p>
+ * Line endings are converted to unix format (only <tt>\n</tt>) on the fly.
+ * Only a small, fixed amount of memory is used regardless of the size
+ * of the output.
+ */
+public class CapturedOutputReader extends Reader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ByteSource source;
+    private final long end;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    private long position;
+    private boolean endOfInput = false;
+    private boolean pendingCR = false;
+
+    /**
+     * Creates a reader for everything currently in the source.
+     */
+    public CapturedOutputReader(ByteSource source, Charset charset) {
+        this(source, 0, source.size(), charset);
+    }
+
+    /**
+     * Creates a reader for the bytes from {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    public CapturedOutputReader(ByteSource source, long start, long end, Charset charset) {
+        this.source = source;
+        this.position = start;
+        this.end = end;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes.flip();
+        chars.flip();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < len) {
+            if (!chars.hasRemaining() && !fill()) {
+                if (pendingCR) {
+                    pendingCR = false;
+                    cbuf[off + count++] = '\r';
+                }
+                break;
+            }
+            while (count < len && chars.hasRemaining()) {
+                char c = chars.get();
+                if (pendingCR) {
+                    pendingCR = false;
+                    if (c != '\n') {
+                        // Emit the lone '\r' and look at c again next time.
+                        chars.position(chars.position() - 1);
+                        c = '\r';
+                    }
+                    cbuf[off + count++] = c;
+                } else if (c == '\r') {
+                    pendingCR = true;
+                } else {
+                    cbuf[off + count++] = c;
+                }
+            }
+        }
+        return (count == 0) ? -1 : count;
+    }
+
+    /**
+     * Reads a line of text without the line terminator.
+     *
+     * @return The line, or null if there are no more lines.
+     */
+    public String readLine() throws IOException {
+        StringBuilder line = null;
+        char[] c = new char[1];
+        while (read(c, 0, 1) == 1) {
+            if (line == null) {
+                line = new StringBuilder();
+            }
+            if (c[0] == '\n') {
+                return line.toString();
+            }
+            line.append(c[0]);
+        }
+        return (line != null) ? line.toString() : null;
+    }
+
+    /**
+     * Decodes more characters into {@link #chars}.
+     *
+     * @return False if there is nothing more to decode.
+     */
+    private boolean fill() throws IOException {
+        chars.clear();
+        try {
+            while (chars.position() == 0 && !endOfInput) {
+                bytes.compact();
+                int toRead = (int)Math.min(bytes.remaining(), end - position);
+                int n = (toRead > 0) ? source.read(position, bytes.array(), bytes.arrayOffset() + bytes.position(), toRead) : -1;
+                if (n > 0) {
+                    position += n;
+                    bytes.position(bytes.position() + n);
+                } else {
+                    endOfInput = true;
+                }
+                bytes.flip();
+
+                decoder.decode(bytes, chars, endOfInput);
+                if (endOfInput) {
+                    decoder.flush(chars);
+                }
+            }
+        } finally {
+            chars.flip();
+        }
+        return chars.hasRemaining();
+    }
+
+    @Override
+    public void close() {
+        endOfInput = true;
+        bytes.clear().flip();
+        chars.clear().flip();
+    }
+}
@@ -0,0 +1,172 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An input stream whose data is given while it is being read.
+ *
+ * <p>
+ * Reads block until data is fed with {@link #feed(byte[], int, int)} or
+ * the end of input is signalled with {@link #endInput()}. Feeding never
+ * blocks: data is appended to a ring buffer that grows as needed.
+ *
+ * <p>
+ * All methods are thread-safe.
+ */
+public class FeedableInputStream extends InputStream {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] ring = new byte[INITIAL_CAPACITY];
+    private int head = 0;
+    private int count = 0;
+    private boolean ended = false;
+    private int readersWaiting = 0;
+    private long readTimeout;
+
+    /**
+     * Creates a stream whose reads wait indefinitely for input.
+     */
+    public FeedableInputStream() {
+        this(0);
+    }
+
+    /**
+     * Creates a stream whose reads wait at most {@code readTimeoutMillis}
+     * for input. Zero means no timeout.
+     */
+    public FeedableInputStream(long readTimeoutMillis) {
+        setReadTimeout(readTimeoutMillis);
+    }
+
+    /**
+     * Sets how long a read waits for input before failing with an
+     * {@link InterruptedIOException}. Zero means no timeout.
+     */
+    public synchronized void setReadTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        this.readTimeout = millis;
+    }
+
+    public void feed(byte[] b) {
+        feed(b, 0, b.length);
+    }
+
+    /**
+     * Appends data for readers.
+     *
+     * @throws IllegalStateException if {@link #endInput()} has been called.
+     */
+    public synchronized void feed(byte[] b, int off, int len) {
+        if (ended) {
+            throw new IllegalStateException("Input has already ended");
+        }
+        ensureCapacity(count + len);
+        int tail = (head + count) % ring.length;
+        int firstPart = Math.min(len, ring.length - tail);
+        System.arraycopy(b, off, ring, tail, firstPart);
+        System.arraycopy(b, off + firstPart, ring, 0, len - firstPart);
+        count += len;
+        notifyAll();
+    }
+
+    /**
+     * Makes reads return end-of-file once the remaining data has been read.
+     */
+    public synchronized void endInput() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Tells whether some thread is currently blocked waiting for input.
+     */
+    public synchronized boolean isWaitingForInput() {
+        return readersWaiting > 0;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > ring.length) {
+            int newCapacity = Math.max(needed, 2 * ring.length);
+            byte[] newRing = new byte[newCapacity];
+            int firstPart = Math.min(count, ring.length - head);
+            System.arraycopy(ring, head, newRing, 0, firstPart);
+            System.arraycopy(ring, 0, newRing, firstPart, count - firstPart);
+            ring = newRing;
+            head = 0;
+        }
+    }
+
+    /**
+     * Waits until there is data or the input has ended.
+     *
+     * @return False if the input has ended and there is no more data.
+     */
+    private boolean awaitData() throws IOException {
+        if (count > 0) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + readTimeout;
+        readersWaiting++;
+        try {
+            while (count == 0 && !ended) {
+                long wait = 0;
+                if (readTimeout > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new InterruptedIOException("No input received within " + readTimeout + " ms");
+                    }
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for input");
+                }
+            }
+        } finally {
+            readersWaiting--;
+        }
+        return count > 0;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!awaitData()) {
+            return -1;
+        }
+        int b = ring[head] & 0xFF;
+        head = (head + 1) % ring.length;
+        count--;
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!awaitData()) {
+            return -1;
+        }
+        int n = Math.min(len, count);
+        int firstPart = Math.min(n, ring.length - head);
+        System.arraycopy(ring, head, b, off, firstPart);
+        System.arraycopy(ring, 0, b, off + firstPart, n - firstPart);
+        head = (head + n) % ring.length;
+        count -= n;
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return count;
+    }
+}
@@ -0,0 +1,251 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Keeps the text in a {@link ByteSource}, such as a {@link CaptureBuffer},
+ * decoded as the source grows.
+ *
+ * <p>
+ * Each call decodes only the bytes captured since the previous call,
+ * reusing the same decoder and buffers. If nothing new has been captured,
+ * the previously returned string is returned again.
+ *
+ * <p>
+ * Line endings are converted to unix format (only <tt>\n</tt>).
+ * An incomplete multi-byte character at the end of the buffer is left
+ * undecoded until the rest of it has been captured or {@link #finish()}
+ * is called.
+ *
+ * <p>
+ * The decoded text is kept in memory only up to
+ * {@link #setMaxRetainedChars(int) a limit}. Past it, the text is decoded
+ * from the source again on each call and not kept, so that output spilled to
+ * disk by a {@link CaptureBuffer} does not end up in memory for good.
+ */
+public class IncrementalDecoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ByteSource source;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    private final Charset charset;
+    private final StringBuilder text = new StringBuilder();
+    private long position = 0;
+    private String cached = "";
+    private boolean changed = false;
+
+    private int maxRetainedChars = Integer.MAX_VALUE;
+    private boolean retaining = true;
+    private int length = 0;
+    private char lastChar = 0;
+
+    public IncrementalDecoder(ByteSource source, Charset charset) {
+        this.source = source;
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes.flip();
+    }
+
+    /**
+     * Sets how many characters of decoded text may be kept in memory.
+     * Defaults to no limit.
+     */
+    public synchronized void setMaxRetainedChars(int maxRetainedChars) {
+        this.maxRetainedChars = maxRetainedChars;
+        checkRetention();
+    }
+
+    /**
+     * Returns the whole text decoded so far.
+     */
+    public synchronized String getText() {
+        update();
+        if (!retaining) {
+            return decodeFrom(0);
+        }
+        if (changed) {
+            cached = text.toString();
+            changed = false;
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the length of the text decoded so far.
+     */
+    public synchronized int length() {
+        update();
+        return length;
+    }
+
+    /**
+     * Returns the text decoded so far starting from the given character offset.
+     *
+     * <p>
+     * Only the requested part is copied.
+     *
+     * @throws IndexOutOfBoundsException If the offset is past the end of the text.
+     */
+    public synchronized String getTextFrom(int offset) {
+        update();
+        if (offset == 0) {
+            return getText();
+        }
+        if (!retaining) {
+            return decodeFrom(offset);
+        }
+        return text.substring(offset);
+    }
+
+    /**
+     * Like {@link #getTextFrom(int)}, but for an offset that was taken when
+     * the text ended with a <tt>\r</tt>, as told by {@link #endsWithCarriageReturn()}.
+     *
+     * <p>
+     * If a <tt>\n</tt> has since been decoded after the <tt>\r</tt>, the pair
+     * has been converted into a single <tt>\n</tt> just before the offset,
+     * and that <tt>\n</tt> is included in the result.
+     */
+    public synchronized String getTextFrom(int offset, boolean afterCarriageReturn) {
+        if (!afterCarriageReturn || offset == 0) {
+            return getTextFrom(offset);
+        }
+        String result = getTextFrom(offset - 1);
+        return result.startsWith("\n") ? result : result.substring(1);
+    }
+
+    /**
+     * Tells whether the text decoded so far ends with a <tt>\r</tt>
+     * that a following <tt>\n</tt> would still turn into a <tt>\n</tt>.
+     */
+    public synchronized boolean endsWithCarriageReturn() {
+        update();
+        return length > 0 && lastChar == '\r';
+    }
+
+    /**
+     * Decodes any bytes left over at the end of the source,
+     * such as an incomplete character, as replacement characters.
+     *
+     * <p>
+     * Should be called when nothing more will be written to the source.
+     */
+    public synchronized void finish() {
+        update();
+        chars.clear();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        appendNormalized(chars);
+        decoder.reset();
+        bytes.clear().flip();
+    }
+
+    private String decodeFrom(int offset) {
+        if (offset < 0 || offset > length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is outside of text of length " + length);
+        }
+        StringBuilder result = new StringBuilder(length - offset);
+        Reader reader = new CapturedOutputReader(source, 0, position - bytes.remaining(), charset);
+        try {
+            char[] buf = new char[BUFFER_SIZE];
+            long toSkip = offset;
+            while (toSkip > 0) {
+                long n = reader.skip(toSkip);
+                if (n <= 0) {
+                    break;
+                }
+                toSkip -= n;
+            }
+            int n;
+            while (result.length() < length - offset && (n = reader.read(buf)) > 0) {
+                result.append(buf, 0, Math.min(n, length - offset - result.length()));
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return result.toString();
+    }
+
+    private void update() {
+        long size = source.size();
+        if (size < position) {
+            // The buffer has been reset.
+            decoder.reset();
+            bytes.clear().flip();
+            text.setLength(0);
+            cached = "";
+            changed = false;
+            position = 0;
+            retaining = true;
+            length = 0;
+            lastChar = 0;
+        }
+
+        try {
+            while (position < size) {
+                bytes.compact();
+                int toRead = (int)Math.min(bytes.remaining(), size - position);
+                int n = source.read(position, bytes.array(), bytes.arrayOffset() + bytes.position(), toRead);
+                if (n <= 0) {
+                    bytes.flip();
+                    break;
+                }
+                position += n;
+                bytes.position(bytes.position() + n);
+                bytes.flip();
+
+                CoderResult result;
+                do {
+                    chars.clear();
+                    result = decoder.decode(bytes, chars, false);
+                    chars.flip();
+                    appendNormalized(chars);
+                } while (result.isOverflow());
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void appendNormalized(CharBuffer chars) {
+        changed |= chars.hasRemaining();
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (c == '\n' && lastChar == '\r') {
+                if (retaining) {
+                    text.setCharAt(length - 1, '\n');
+                }
+            } else {
+                if (retaining) {
+                    text.append(c);
+                }
+                ++length;
+            }
+            lastChar = c;
+        }
+        checkRetention();
+    }
+
+    private void checkRetention() {
+        if (retaining && length > maxRetainedChars) {
+            retaining = false;
+            text.setLength(0);
+            text.trimToSize();
+            cached = null;
+        }
+    }
+}
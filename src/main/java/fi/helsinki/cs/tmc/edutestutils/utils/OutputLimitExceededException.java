@@ -0,0 +1,12 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+/**
+ * Thrown when a program prints more than a {@link CaptureBuffer} allows.
+ */
+public class OutputLimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    public OutputLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,105 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes characters from a {@link Reader} into bytes as they are read.
+ *
+ * <p>
+ * Only a small, fixed amount of memory is used regardless of the
+ * amount of text.
+ */
+public class ReaderInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean endOfInput = false;
+    private boolean encoded = false;
+    private boolean flushed = false;
+
+    public ReaderInputStream(Reader reader, Charset charset) {
+        this.reader = reader;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars.flip();
+        bytes.flip();
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!bytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return bytes.get() & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!bytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        len = Math.min(len, bytes.remaining());
+        bytes.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public synchronized int available() {
+        return bytes.remaining();
+    }
+
+    /**
+     * Encodes more bytes into {@link #bytes}.
+     *
+     * @return False if there is nothing more to encode.
+     */
+    private boolean fill() throws IOException {
+        bytes.clear();
+        try {
+            while (bytes.position() == 0 && !flushed) {
+                if (!endOfInput) {
+                    chars.compact();
+                    int n = reader.read(chars);
+                    if (n < 0) {
+                        endOfInput = true;
+                    }
+                    chars.flip();
+                }
+                if (!encoded) {
+                    CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                    encoded = endOfInput && !result.isOverflow();
+                }
+                if (encoded) {
+                    flushed = !encoder.flush(bytes).isOverflow();
+                }
+            }
+        } finally {
+            bytes.flip();
+        }
+        return bytes.hasRemaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -1,13 +1,21 @@
 package fi.helsinki.cs.tmc.edutestutils.utils;
 
 import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * Delegates to another input stream that can be switched at any time.
+ *
+ * <p>
+ * In addition to the globally switched stream, a thread may read from its own
+ * stream set with {@link #setThreadUnderlying(InputStream)}.
+ * Threads started by that thread inherit the routing.
  */
 public class SwitchableInputStream extends FilterInputStream {
 
+    private final InheritableThreadLocal<InputStream> threadIn = new InheritableThreadLocal<InputStream>();
+
     public SwitchableInputStream(InputStream out) {
         super(out);
     }
@@ -15,9 +23,68 @@ public class SwitchableInputStream extends FilterInputStream {
     public InputStream getUnderlying() {
         return in;
     }
-    
+
     public void setUnderlying(InputStream in) {
         this.in = in;
     }
-    
+
+    /**
+     * Returns the stream the current thread has been routed to, or null.
+     */
+    public InputStream getThreadUnderlying() {
+        return threadIn.get();
+    }
+
+    /**
+     * Routes reads from the current thread (and threads it starts afterwards)
+     * to the given stream. Null removes the routing.
+     */
+    public void setThreadUnderlying(InputStream in) {
+        if (in != null) {
+            threadIn.set(in);
+        } else {
+            threadIn.remove();
+        }
+    }
+
+    private InputStream current() {
+        InputStream routed = threadIn.get();
+        return (routed != null) ? routed : in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return current().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return current().read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return current().skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current().available();
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        current().mark(readlimit);
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        current().reset();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return current().markSupported();
+    }
+
 }
@@ -1,13 +1,21 @@
 package fi.helsinki.cs.tmc.edutestutils.utils;
 
 import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 
 /**
  * Delegates to another output stream that can be switched at any time.
+ *
+ * <p>
+ * In addition to the globally switched stream, a thread may route its own
+ * writes elsewhere with {@link #setThreadUnderlying(OutputStream)}.
+ * Threads started by that thread inherit the routing.
  */
 public class SwitchableOutputStream extends FilterOutputStream {
 
+    private final InheritableThreadLocal<OutputStream> threadOut = new InheritableThreadLocal<OutputStream>();
+
     public SwitchableOutputStream(OutputStream out) {
         super(out);
     }
@@ -15,9 +23,54 @@ public class SwitchableOutputStream extends FilterOutputStream {
     public OutputStream getUnderlying() {
         return out;
     }
-    
+
     public void setUnderlying(OutputStream out) {
         this.out = out;
     }
-    
+
+    /**
+     * Returns the stream the current thread has been routed to, or null.
+     */
+    public OutputStream getThreadUnderlying() {
+        return threadOut.get();
+    }
+
+    /**
+     * Routes writes from the current thread (and threads it starts afterwards)
+     * to the given stream. Null removes the routing.
+     */
+    public void setThreadUnderlying(OutputStream out) {
+        if (out != null) {
+            threadOut.set(out);
+        } else {
+            threadOut.remove();
+        }
+    }
+
+    private OutputStream current() {
+        OutputStream routed = threadOut.get();
+        return (routed != null) ? routed : out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        current().write(b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        current().write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would call write(int) for each byte.
+        current().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        current().flush();
+    }
+
 }
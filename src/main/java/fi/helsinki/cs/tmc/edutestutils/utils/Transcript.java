@@ -0,0 +1,229 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records the order in which output was written to several {@link CaptureBuffer}s.
+ *
+ * <p>
+ * The bytes themselves stay in the capture buffers. The transcript only
+ * keeps an append-only log of segments, each saying which stream a run of
+ * consecutive writes went to and where in that stream's buffer they are.
+ * Consecutive writes to the same stream are merged into one segment.
+ *
+ * <p>
+ * The transcript is itself a {@link ByteSource} for the merged output,
+ * so it can be decoded e.g. with a {@link CapturedOutputReader}.
+ *
+ * <p>
+ * All methods are thread-safe.
+ */
+public class Transcript implements ByteSource {
+
+    /**
+     * Identifies the stream a segment was written to.
+     */
+    public static enum Stream {
+        OUT, ERR
+    }
+
+    /**
+     * A run of consecutive writes to one stream.
+     */
+    public static final class Segment {
+        private final Stream stream;
+        private final int sequenceNumber;
+        private final CaptureBuffer buffer;
+        private final long start;
+        private final long length;
+
+        private Segment(Stream stream, int sequenceNumber, CaptureBuffer buffer, long start, long length) {
+            this.stream = stream;
+            this.sequenceNumber = sequenceNumber;
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * Returns the stream this segment was written to.
+         */
+        public Stream getStream() {
+            return stream;
+        }
+
+        /**
+         * Returns the position of this segment in the transcript, starting from 0.
+         */
+        public int getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        /**
+         * Returns the position of this segment in its stream's buffer.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the number of bytes in this segment.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Decodes this segment, converting line endings to unix format.
+         */
+        public String getText(Charset charset) {
+            byte[] bytes = new byte[(int)length];
+            try {
+                int pos = 0;
+                while (pos < bytes.length) {
+                    int n = buffer.read(start + pos, bytes, pos, bytes.length - pos);
+                    if (n < 0) {
+                        break;
+                    }
+                    pos += n;
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return new String(bytes, charset).replace("\r\n", "\n");
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequenceNumber + " " + stream + " [" + start + ", " + (start + length) + ")";
+        }
+    }
+
+    private static final Stream[] STREAMS = Stream.values();
+
+    private final CaptureBuffer[] buffers = new CaptureBuffer[STREAMS.length];
+
+    // Segment i covers buffers[streams[i]] from starts[i] to starts[i] + lengths[i]
+    // and the merged output from mergedStarts[i] onwards.
+    private int count = 0;
+    private byte[] streams = new byte[16];
+    private long[] starts = new long[16];
+    private long[] lengths = new long[16];
+    private long[] mergedStarts = new long[16];
+    private long mergedSize = 0;
+
+    /**
+     * Creates a transcript of writes to the given buffers.
+     */
+    public Transcript(CaptureBuffer out, CaptureBuffer err) {
+        buffers[Stream.OUT.ordinal()] = out;
+        buffers[Stream.ERR.ordinal()] = err;
+    }
+
+    /**
+     * Returns an output stream that writes to the given stream's buffer
+     * and records the write in this transcript.
+     */
+    public OutputStream sink(final Stream stream) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                record(stream, b, off, len);
+            }
+        };
+    }
+
+    private synchronized void record(Stream stream, byte[] b, int off, int len) throws IOException {
+        CaptureBuffer buffer = buffers[stream.ordinal()];
+        long before = buffer.size();
+        try {
+            buffer.write(b, off, len);
+        } finally {
+            // Also records partial writes, e.g. truncated ones.
+            long written = buffer.size() - before;
+            if (written > 0) {
+                append(stream, before, written);
+            }
+        }
+    }
+
+    private void append(Stream stream, long start, long length) {
+        int last = count - 1;
+        if (last >= 0 && streams[last] == stream.ordinal() && starts[last] + lengths[last] == start) {
+            lengths[last] += length;
+        } else {
+            if (count == streams.length) {
+                int newCapacity = 2 * count;
+                streams = Arrays.copyOf(streams, newCapacity);
+                starts = Arrays.copyOf(starts, newCapacity);
+                lengths = Arrays.copyOf(lengths, newCapacity);
+                mergedStarts = Arrays.copyOf(mergedStarts, newCapacity);
+            }
+            streams[count] = (byte)stream.ordinal();
+            starts[count] = start;
+            lengths[count] = length;
+            mergedStarts[count] = mergedSize;
+            count++;
+        }
+        mergedSize += length;
+    }
+
+    /**
+     * Returns a snapshot of the segments recorded so far, in order.
+     */
+    public synchronized List<Segment> getSegments() {
+        List<Segment> result = new ArrayList<Segment>(count);
+        for (int i = 0; i < count; ++i) {
+            Stream stream = STREAMS[streams[i]];
+            result.add(new Segment(stream, i, buffers[stream.ordinal()], starts[i], lengths[i]));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the size of the merged output.
+     */
+    @Override
+    public synchronized long size() {
+        return mergedSize;
+    }
+
+    /**
+     * Reads the merged output.
+     */
+    @Override
+    public synchronized int read(long position, byte[] dst, int off, int len) throws IOException {
+        if (position >= mergedSize) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(mergedStarts, 0, count, position);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        int copied = 0;
+        while (copied < len && i < count) {
+            long offsetInSegment = position + copied - mergedStarts[i];
+            int n = (int)Math.min(len - copied, lengths[i] - offsetInSegment);
+            n = buffers[streams[i]].read(starts[i] + offsetInSegment, dst, off + copied, n);
+            if (n <= 0) {
+                break;
+            }
+            copied += n;
+            if (offsetInSegment + n == lengths[i]) {
+                i++;
+            }
+        }
+        return copied;
+    }
+}
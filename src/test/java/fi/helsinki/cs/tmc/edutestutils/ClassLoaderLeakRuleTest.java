@@ -0,0 +1,103 @@
+package fi.helsinki.cs.tmc.edutestutils;
+
+import fi.helsinki.cs.tmc.edutestutils.classloaders.ClassLoaderTracker;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import static org.junit.Assert.*;
+
+public class ClassLoaderLeakRuleTest {
+    public static class Subject {
+    }
+
+    public static class FakeTestClass {
+        public static Object reloadedInstance;
+        public static Class<?> reloadedClass;
+        public static Object unrelated;
+    }
+
+    private static Object leaked;
+
+    private Description suite() {
+        Description d = Description.createSuiteDescription(FakeTestClass.class);
+        d.addChild(Description.createTestDescription(FakeTestClass.class, "test"));
+        return d;
+    }
+
+    @Test
+    public void loadersCreatedByReflectionUtilsAreTracked() throws Exception {
+        long mark = ClassLoaderTracker.getShared().mark();
+        Class<?> cls = ReflectionUtils.newInstanceOfClass(Subject.class);
+        assertTrue(ClassLoaderTracker.getShared().isTracked(cls.getClassLoader()));
+        assertEquals(1, ClassLoaderTracker.getShared().getLiveDescriptionsSince(mark).size());
+        cls = null;
+        assertTrue(ClassLoaderTracker.getShared().awaitCollection(mark, 5000).isEmpty());
+    }
+
+    @Test
+    public void clearsStaticReferencesOfTestClass() throws Throwable {
+        ClassLoaderLeakRule rule = new ClassLoaderLeakRule();
+        rule.setFailOnLeak(true);
+        rule.setTimeout(5000);
+        FakeTestClass.unrelated = "keep";
+        rule.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                Class<?> cls = ReflectionUtils.newInstanceOfClass(Subject.class);
+                FakeTestClass.reloadedClass = cls;
+                FakeTestClass.reloadedInstance = cls.newInstance();
+            }
+        }, suite()).evaluate();
+        assertNull(FakeTestClass.reloadedClass);
+        assertNull(FakeTestClass.reloadedInstance);
+        assertEquals("keep", FakeTestClass.unrelated);
+    }
+
+    @Test
+    public void reportsLeakedLoaders() throws Throwable {
+        ClassLoaderLeakRule rule = new ClassLoaderLeakRule();
+        rule.setFailOnLeak(true);
+        rule.setTimeout(100);
+        try {
+            rule.apply(new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    leaked = ReflectionUtils.newInstanceOfClass(Subject.class);
+                }
+            }, suite()).evaluate();
+            fail("Leak not reported");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage().contains(Subject.class.getName()));
+        } finally {
+            leaked = null;
+        }
+    }
+
+    @Test
+    public void keepsPreloadedCopiesWhenUsedPerTest() throws Throwable {
+        final String className = Subject.class.getName();
+        ReflectionUtils.setPreloadedClassCopies(1);
+        try {
+            ClassLoaderLeakRule rule = new ClassLoaderLeakRule();
+            rule.setFailOnLeak(true);
+            rule.setTimeout(5000);
+            rule.apply(new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    ReflectionUtils.newInstanceOfClass(className);
+                    awaitPreloadedCopy(className);
+                }
+            }, Description.createTestDescription(FakeTestClass.class, "test")).evaluate();
+            assertEquals(1, ReflectionUtils.availablePreloadedClassCopies(className));
+        } finally {
+            ReflectionUtils.setPreloadedClassCopies(0);
+        }
+    }
+
+    private static void awaitPreloadedCopy(String className) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ReflectionUtils.availablePreloadedClassCopies(className) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
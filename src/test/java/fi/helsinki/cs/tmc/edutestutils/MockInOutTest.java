@@ -4,6 +4,11 @@ import java.util.Scanner;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import java.util.NoSuchElementException;
+import fi.helsinki.cs.tmc.edutestutils.utils.CaptureBuffer;
+import fi.helsinki.cs.tmc.edutestutils.utils.OutputLimitExceededException;
+import java.nio.charset.Charset;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 
 public class MockInOutTest {
 
@@ -36,4 +41,86 @@ public class MockInOutTest {
         assertTrue(System.in==in);
     }
 
-}
\ No newline at end of file
+    @Test public void capturesStderr() {
+        Object err = System.err;
+        MockInOut mio = new MockInOut("");
+        try {
+            System.err.println("oops\r\nagain");
+            assertEquals("oops\nagain\n", mio.getErrorOutput());
+            assertEquals("", mio.getOutput());
+        } finally {
+            mio.close();
+        }
+        assertTrue(System.err==err);
+    }
+
+    @Test public void canBeUsedWithTryWithResources() {
+        Object out = System.out;
+        try (MockInOut mio = new MockInOut("")) {
+            System.out.print("inside");
+            assertEquals("inside", mio.getOutput());
+        }
+        assertTrue(System.out==out);
+    }
+
+    @Test public void closesAfterTheTestWhenUsedAsARule() throws Throwable {
+        Object out = System.out;
+        final MockInOut mio = new MockInOut("");
+        mio.apply(new Statement() {
+            @Override
+            public void evaluate() {
+                System.out.print("inside");
+            }
+        }, Description.EMPTY).evaluate();
+        assertTrue(System.out==out);
+        mio.close(); // Closing again does nothing
+        assertTrue(System.out==out);
+    }
+
+    @Test public void redirectsOnlyDuringTheTestWhenCreatedForARule() throws Throwable {
+        final Object out = System.out;
+        final MockInOut mio = MockInOut.forRule("input");
+        assertTrue(System.out==out);
+        mio.apply(new Statement() {
+            @Override
+            public void evaluate() {
+                assertFalse(System.out==out);
+                assertEquals("input", new Scanner(System.in).nextLine());
+                System.out.print("inside");
+                assertEquals("inside", mio.getOutput());
+            }
+        }, Description.EMPTY).evaluate();
+        assertTrue(System.out==out);
+    }
+
+    @Test public void failsTheTestIfTheOutputLimitWasExceeded() throws Throwable {
+        Object out = System.out;
+        MockInOut mio = MockInOut.forRule("", Charset.defaultCharset(), 4, CaptureBuffer.OverflowPolicy.FAIL);
+        try {
+            mio.apply(new Statement() {
+                @Override
+                public void evaluate() {
+                    try {
+                        System.out.print("too long");
+                        System.out.flush();
+                    } catch (RuntimeException e) {
+                        // Swallowed by the tested code
+                    }
+                }
+            }, Description.EMPTY).evaluate();
+            fail("Output limit not enforced");
+        } catch (OutputLimitExceededException e) {
+        }
+        assertTrue(System.out==out);
+    }
+
+    @Test public void usesTheGivenCharset() throws Exception {
+        Charset utf16 = Charset.forName("UTF-16BE");
+        try (MockInOut mio = new MockInOut("mää", utf16, CaptureBuffer.UNLIMITED, CaptureBuffer.OverflowPolicy.FAIL)) {
+            assertEquals("mää", new Scanner(System.in, "UTF-16BE").nextLine());
+            System.out.print("möö");
+            assertEquals("möö", mio.getOutput());
+        }
+    }
+
+}
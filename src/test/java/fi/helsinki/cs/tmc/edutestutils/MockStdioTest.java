@@ -1,10 +1,21 @@
 package fi.helsinki.cs.tmc.edutestutils;
 
+import fi.helsinki.cs.tmc.edutestutils.utils.CaptureBuffer;
+import fi.helsinki.cs.tmc.edutestutils.utils.OutputLimitExceededException;
+import fi.helsinki.cs.tmc.edutestutils.utils.Transcript;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import java.util.Scanner;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
 import static org.junit.Assert.*;
 
 public class MockStdioTest {
@@ -41,6 +52,56 @@ public class MockStdioTest {
         assertEquals("hello", new Scanner(System.in).nextLine());
     }
     
+    @Test
+    public void allowsSettingStdinFromAFile() throws Exception {
+        File file = File.createTempFile("MockStdioTest", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("from file\n".getBytes("UTF-8"));
+        out.close();
+        
+        io.setSysIn(file.toPath());
+        assertEquals("from file", new Scanner(System.in).nextLine());
+    }
+    
+    @Test
+    public void allowsSettingStdinFromAByteBuffer() {
+        io.setSysIn(ByteBuffer.wrap("buffered".getBytes()));
+        assertEquals("buffered", new Scanner(System.in).nextLine());
+    }
+    
+    @Test
+    public void allowsFeedingStdinWhileProgramRuns() throws Exception {
+        final String[] received = new String[2];
+        io.setInteractiveSysIn();
+        Thread program = new Thread() {
+            @Override
+            public void run() {
+                Scanner scanner = new Scanner(System.in);
+                System.out.print("Name? ");
+                received[0] = scanner.nextLine();
+                System.out.println("Hello " + received[0]);
+                System.out.print("Name? ");
+                received[1] = scanner.nextLine();
+                System.out.println("Bye");
+            }
+        };
+        program.start();
+        
+        assertTrue(io.waitForSysOut("Name? ", 5000));
+        io.feedSysIn("Arto\n");
+        assertTrue(io.waitForSysOut("Hello Arto", 5000));
+        assertTrue(io.waitForSysOut("Name? ", 5000));
+        io.feedSysIn("Matti\n");
+        io.endSysIn();
+        program.join(5000);
+        
+        assertEquals("Arto", received[0]);
+        assertEquals("Matti", received[1]);
+        assertEquals("Name? Hello Arto\nName? Bye\n", io.getSysOut());
+        assertFalse(io.waitForSysOut("Name? ", 10));
+    }
+    
     @Test
     public void convertsWindowsLineEndingsToUnix() {
         System.out.println("hello\r\nworld");
@@ -48,4 +109,177 @@ public class MockStdioTest {
         assertEquals("hello\nworld\n", io.getSysOut());
         assertEquals("world\nhello\n", io.getSysErr());
     }
+    
+    @Test
+    public void decodesWithTheGivenCharset() throws Exception {
+        io.setCharset(Charset.forName("UTF-16BE"));
+        System.out.println("hyv\u00e4\u00e4 p\u00e4iv\u00e4\u00e4");
+        System.err.print("\u20ac");
+        assertEquals("hyv\u00e4\u00e4 p\u00e4iv\u00e4\u00e4\n", io.getSysOut());
+        assertEquals("\u20ac", io.getSysErr());
+    }
+    
+    @Test
+    public void appliesCharsetSetBeforeEnabling() throws Exception {
+        MockStdio other = new MockStdio();
+        other.setCharset(Charset.forName("UTF-16BE"));
+        io.disable();
+        other.enable();
+        try {
+            System.out.print("\u00e4");
+        } finally {
+            other.disable();
+            io.enable();
+        }
+        assertEquals("\u00e4", other.getSysOut());
+        System.out.print("ok");
+        assertEquals("ok", io.getSysOut());
+    }
+    
+    @Test
+    public void keepsSystemOutUnlessAnotherCharsetIsNeeded() throws Exception {
+        PrintStream out = System.out;
+        io.disable();
+        io.enable();
+        assertSame(out, System.out);
+        
+        MockStdio other = new MockStdio(MockStdio.Scope.THREAD);
+        other.setCharset(Charset.forName("UTF-16BE"));
+        other.enable();
+        try {
+            assertSame(out, System.out);
+        } finally {
+            other.disable();
+        }
+        assertSame(out, System.out);
+    }
+    
+    @Test
+    public void stringInputIsAvailableAndMarkable() throws Exception {
+        io.setSysIn("abc");
+        assertEquals(3, System.in.available());
+        assertTrue(System.in.markSupported());
+        System.in.mark(3);
+        assertEquals('a', System.in.read());
+        System.in.reset();
+        assertEquals('a', System.in.read());
+    }
+    
+    @Test
+    public void returnsUpToDateOutputOnRepeatedCalls() {
+        System.out.print("one");
+        assertEquals("one", io.getSysOut());
+        assertSame(io.getSysOut(), io.getSysOut());
+        System.out.print(" two");
+        assertEquals("one two", io.getSysOut());
+    }
+    
+    @Test
+    public void returnsOutputSinceMark() {
+        System.out.print("one\r");
+        MockStdio.Mark first = io.markSysOut();
+        System.out.print("\ntwo");
+        MockStdio.Mark second = io.markSysOut();
+        System.out.print(" three");
+        
+        assertEquals("\ntwo three", io.getSysOutSince(first));
+        assertEquals(" three", io.getSysOutSince(second));
+        assertEquals("", io.getSysOutSince(io.markSysOut()));
+        assertEquals("one\ntwo three", io.getSysOut());
+    }
+    
+    @Test
+    public void decodesIncompleteCharactersWhenDisabled() throws Throwable {
+        final MockStdio inner = new MockStdio();
+        inner.setCharset(Charset.forName("UTF-8"));
+        inner.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                System.out.print("a");
+                System.out.write("ä".getBytes("UTF-8")[0]);
+                System.out.flush();
+                assertEquals("a", inner.getSysOut());
+            }
+        }, Description.EMPTY).evaluate();
+        assertEquals("a\uFFFD", inner.getSysOut());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsMarksFromAnotherStream() {
+        io.getSysOutSince(io.markSysErr());
+    }
+    
+    @Test
+    public void recordsTheOrderOfStdoutAndStderr() {
+        io.setTranscriptEnabled(true);
+        System.out.println("enter a number");
+        System.err.println("not a number");
+        System.out.print("enter ");
+        System.out.println("a number");
+        
+        assertEquals("enter a number\nnot a number\nenter a number\n", io.getTranscript());
+        assertEquals("enter a number\nenter a number\n", io.getSysOut());
+        assertEquals("not a number\n", io.getSysErr());
+        
+        List<Transcript.Segment> segments = io.getTranscriptSegments();
+        assertEquals(3, segments.size());
+        assertEquals(Transcript.Stream.OUT, segments.get(0).getStream());
+        assertEquals(Transcript.Stream.ERR, segments.get(1).getStream());
+        assertEquals("not a number\n", segments.get(1).getText(io.getCharset()));
+        assertEquals(2, segments.get(2).getSequenceNumber());
+        assertEquals("enter a number\n", segments.get(2).getText(io.getCharset()));
+    }
+    
+    @Test
+    public void iteratesOverOutputLines() {
+        System.out.print("one\r\ntwo\nthree\n");
+        StringBuilder sb = new StringBuilder();
+        for (String line : io.getSysOutLines()) {
+            sb.append("[").append(line).append("]");
+        }
+        assertEquals("[one][two][three]", sb.toString());
+        assertFalse(io.getSysErrLines().iterator().hasNext());
+    }
+    
+    @Test
+    public void truncatesOutputOverTheLimit() {
+        io.setOutputLimit(5, CaptureBuffer.OverflowPolicy.TRUNCATE);
+        System.out.print("hello world");
+        assertEquals("hello" + CaptureBuffer.TRUNCATION_MARKER, io.getSysOut());
+    }
+    
+    @Test(expected=OutputLimitExceededException.class)
+    public void failsTheTestWhenOutputLimitIsExceededEvenIfTheExceptionIsCaught() throws Throwable {
+        final MockStdio inner = new MockStdio();
+        inner.setOutputLimit(5, CaptureBuffer.OverflowPolicy.FAIL);
+        inner.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                try {
+                    while (true) {
+                        System.out.println("infinite loop");
+                    }
+                } catch (RuntimeException e) {
+                }
+            }
+        }, Description.EMPTY).evaluate();
+    }
+    
+    @Test
+    public void spilledOutputStaysReadableUntilTheNextTestStarts() throws Throwable {
+        final MockStdio inner = new MockStdio();
+        inner.setOutputLimit(5, CaptureBuffer.OverflowPolicy.SPILL_TO_DISK);
+        inner.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                System.out.print("hello world");
+            }
+        }, Description.EMPTY).evaluate();
+        assertEquals("hello world", inner.getSysOut());
+        
+        MockStdio next = new MockStdio();
+        next.enable();
+        next.disable();
+        assertEquals("hello", inner.getSysOut());
+    }
 }
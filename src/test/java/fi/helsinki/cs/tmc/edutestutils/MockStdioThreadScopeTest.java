@@ -0,0 +1,92 @@
+package fi.helsinki.cs.tmc.edutestutils;
+
+import java.util.Scanner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.ParallelComputer;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import static org.junit.Assert.*;
+
+public class MockStdioThreadScopeTest {
+
+    public static class ParallelSubject {
+        @Rule
+        public MockStdio io = new MockStdio(MockStdio.Scope.THREAD);
+
+        @Test
+        public void first() throws Exception {
+            printAndCheck("first");
+        }
+
+        @Test
+        public void second() throws Exception {
+            printAndCheck("second");
+        }
+
+        @Test
+        public void third() throws Exception {
+            printAndCheck("third");
+        }
+
+        private void printAndCheck(String name) throws Exception {
+            io.setSysIn(name + "\n");
+            for (int i = 0; i < 20; ++i) {
+                System.out.println(name + i);
+                Thread.sleep(2);
+            }
+            assertEquals(name, new Scanner(System.in).nextLine());
+
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20; ++i) {
+                expected.append(name).append(i).append("\n");
+            }
+            assertEquals(expected.toString(), io.getSysOut());
+        }
+    }
+
+    @Test
+    public void separatesOutputOfParallelTests() {
+        Result result = JUnitCore.runClasses(ParallelComputer.methods(), ParallelSubject.class);
+        assertTrue(result.getFailures().toString(), result.wasSuccessful());
+        assertEquals(3, result.getRunCount());
+    }
+
+    @Rule
+    public MockStdio io = new MockStdio(MockStdio.Scope.THREAD);
+
+    @Test
+    public void capturesOutputOfChildThreads() throws Exception {
+        Thread child = new Thread() {
+            @Override
+            public void run() {
+                System.out.println("from child");
+            }
+        };
+        child.start();
+        child.join();
+        assertEquals("from child\n", io.getSysOut());
+    }
+
+    @Test
+    public void doesNotCaptureOutputOfUnrelatedThreads() throws Exception {
+        final MockStdio other = new MockStdio(MockStdio.Scope.THREAD);
+        Thread unrelated = new Thread() {
+            @Override
+            public void run() {
+                other.enable();
+                try {
+                    System.out.println("unrelated");
+                } finally {
+                    other.disable();
+                }
+            }
+        };
+        unrelated.start();
+        unrelated.join();
+        System.out.println("mine");
+
+        assertEquals("mine\n", io.getSysOut());
+        assertEquals("unrelated\n", other.getSysOut());
+    }
+}
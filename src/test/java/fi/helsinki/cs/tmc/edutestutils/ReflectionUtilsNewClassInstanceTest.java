@@ -1,6 +1,7 @@
 package fi.helsinki.cs.tmc.edutestutils;
 
 import fi.helsinki.cs.tmc.edutestutils.ReflectionUtilsNewClassInstanceTest.MainTestSubject;
+import fi.helsinki.cs.tmc.edutestutils.testpkg.CountedSubject;
 import java.lang.reflect.Method;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -37,6 +38,16 @@ public class ReflectionUtilsNewClassInstanceTest {
         public static Dependee dep = new Dependee();
     }
     
+    public static int scopedDependeeInitCount = 0;
+    public static class ScopedDependee {
+        static {
+            scopedDependeeInitCount += 1;
+        }
+    }
+    public static class ScopedDepender {
+        public static ScopedDependee dep = new ScopedDependee();
+    }
+    
     @Test
     public void reloadsGivenClass() throws Exception {
         String className = TestSubject.class.getName();
@@ -82,8 +93,66 @@ public class ReflectionUtilsNewClassInstanceTest {
         assertEquals(1, dependeeInitCount);
     }
     
+    @Test
+    public void reloadsGivenPackagesTogetherWithTheClass() throws Throwable {
+        new ScopedDependee();
+        int initCount = scopedDependeeInitCount;
+        
+        Class<?> depender = ReflectionUtils.newInstanceOfClass(ScopedDepender.class.getName(), ScopedDependee.class.getName());
+        depender.newInstance();
+        Object dep = depender.getField("dep").get(null);
+        assertEquals(initCount + 1, scopedDependeeInitCount);
+        assertNotSame(ScopedDependee.class, dep.getClass());
+        assertSame(depender.getClassLoader(), dep.getClass().getClassLoader());
+        assertSame(Test.class, depender.getClassLoader().loadClass(Test.class.getName()));
+    }
+    
+    @Test
+    public void preloadedCopiesAreFreshAndUninitialized() throws Throwable {
+        ReflectionUtils.setPreloadedClassCopies(2);
+        try {
+            String className = TestSubject.class.getName();
+            timesLoaded = 0;
+            Class<?> cls1 = ReflectionUtils.newInstanceOfClass(className);
+            Class<?> cls2 = ReflectionUtils.newInstanceOfClass(className);
+            assertNotSame(cls1, cls2);
+            assertEquals(0, timesLoaded);
+            cls2.getMethod("doNothing").invoke(null);
+            assertEquals(1, timesLoaded);
+        } finally {
+            ReflectionUtils.setPreloadedClassCopies(0);
+        }
+    }
+    
+    @Test(expected=AssertionError.class)
+    public void throwsAnAssertionErrorIfTheClassCannotBeFoundInPool() throws Throwable {
+        ReflectionUtils.setPreloadedClassCopies(1);
+        try {
+            ReflectionUtils.newInstanceOfClass("Nonexistent");
+        } finally {
+            ReflectionUtils.setPreloadedClassCopies(0);
+        }
+    }
+    
     @Test(expected=AssertionError.class)
     public void throwsAnAssertionErrorIfTheClassCannotBeFound() throws Throwable {
         ReflectionUtils.newInstanceOfClass("Nonexistent");
     }
+    
+    @Test
+    public void countsCallsOfInstrumentedClasses() throws Throwable {
+        Class<?> cls = ReflectionUtils.newInstrumentedInstanceOfClass(CountedSubject.class.getName());
+        assertNotSame(CountedSubject.class, cls);
+        int result = Reflex.reflect(cls).staticMethod("fib").returning(int.class).taking(int.class).invoke(10);
+        assertEquals(55, result);
+        assertEquals(177, ReflectionUtils.getCallCount(cls, "fib"));
+        assertEquals(177, ReflectionUtils.getCallCount(cls));
+        ReflectionUtils.resetCallCounts(cls);
+        assertEquals(0, ReflectionUtils.getCallCount(cls, "fib"));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void callCountsRequireAnInstrumentedClass() {
+        ReflectionUtils.getCallCount(CountedSubject.class, "fib");
+    }
 }
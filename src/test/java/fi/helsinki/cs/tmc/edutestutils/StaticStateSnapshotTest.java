@@ -0,0 +1,72 @@
+package fi.helsinki.cs.tmc.edutestutils;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import static org.junit.Assert.*;
+
+public class StaticStateSnapshotTest {
+    public static int initCount = 0;
+
+    public static class Subject {
+        public static int counter = 3;
+        private static String name = "initial";
+        static int[] values = { 1, 2, 3 };
+        static List<String> list = new ArrayList<String>();
+        static final int CONSTANT = 42;
+        static long big = 1L << 40;
+
+        static {
+            initCount += 1;
+        }
+
+        static String getName() {
+            return name;
+        }
+
+        static void setName(String newName) {
+            name = newName;
+        }
+    }
+
+    @Test
+    public void restoresStaticFieldsWithoutReinitializing() {
+        StaticStateSnapshot snapshot = new StaticStateSnapshot(Subject.class);
+        int inits = initCount;
+        List<String> originalList = Subject.list;
+
+        Subject.counter = 100;
+        Subject.setName("changed");
+        Subject.values[0] = 99;
+        Subject.list = new ArrayList<String>();
+        Subject.big = 0;
+
+        snapshot.restore();
+        assertEquals(3, Subject.counter);
+        assertEquals("initial", Subject.getName());
+        assertArrayEquals(new int[] { 1, 2, 3 }, Subject.values);
+        assertSame(originalList, Subject.list);
+        assertEquals(1L << 40, Subject.big);
+        assertEquals(inits, initCount);
+
+        Subject.values[1] = 77;
+        snapshot.restore();
+        assertEquals(2, Subject.values[1]);
+    }
+
+    @Test
+    public void restoresBeforeEachTestAsRule() throws Throwable {
+        StaticStateSnapshot snapshot = new StaticStateSnapshot(Subject.class);
+        Subject.counter = 100;
+        final int[] seen = new int[1];
+        snapshot.apply(new Statement() {
+            @Override
+            public void evaluate() {
+                seen[0] = Subject.counter;
+            }
+        }, Description.EMPTY).evaluate();
+        assertEquals(3, seen[0]);
+    }
+}
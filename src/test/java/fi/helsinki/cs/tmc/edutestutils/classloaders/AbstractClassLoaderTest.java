@@ -0,0 +1,40 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AbstractClassLoaderTest {
+
+    private static byte[] readSlowly(URL url) throws Exception {
+        InputStream in = url.openStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsClassFilesFromDirectories() throws Exception {
+        URL url = getClass().getResource("AbstractClassLoaderTest.class");
+        assertEquals("file", url.getProtocol());
+        assertArrayEquals(readSlowly(url), AbstractClassLoader.readResource(url));
+    }
+
+    @Test
+    public void readsClassFilesFromJars() throws Exception {
+        URL url = Test.class.getResource("Test.class");
+        assertEquals("jar", url.getProtocol());
+        assertArrayEquals(readSlowly(url), AbstractClassLoader.readResource(url));
+    }
+
+    @Test
+    public void returnsNullForMissingClasses() throws Exception {
+        assertNull(new OverridingClassLoader().loadClassBytes("does.not.Exist"));
+    }
+}
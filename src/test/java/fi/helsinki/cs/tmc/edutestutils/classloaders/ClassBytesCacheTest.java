@@ -0,0 +1,61 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClassBytesCacheTest {
+
+    private static File writeFile(File file, byte[] contents) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void readsEachClassOnlyOnce() throws Exception {
+        ClassBytesCache cache = new ClassBytesCache(1024 * 1024);
+        URL url = getClass().getResource("ClassBytesCacheTest.class");
+        byte[] first = cache.get("ClassBytesCacheTest", url);
+        byte[] second = cache.get("ClassBytesCacheTest", url);
+        assertSame(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(first.length, cache.getTotalBytes());
+    }
+
+    @Test
+    public void rereadsModifiedFiles() throws Exception {
+        File file = File.createTempFile("ClassBytesCacheTest", ".class");
+        file.deleteOnExit();
+        writeFile(file, new byte[] { 1 });
+        file.setLastModified(1000000);
+
+        ClassBytesCache cache = new ClassBytesCache(1024);
+        URL url = file.toURI().toURL();
+        assertArrayEquals(new byte[] { 1 }, cache.get("X", url));
+
+        writeFile(file, new byte[] { 2 });
+        file.setLastModified(2000000);
+        assertArrayEquals(new byte[] { 2 }, cache.get("X", url));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        File a = writeFile(File.createTempFile("ClassBytesCacheTest", ".class"), new byte[6]);
+        File b = writeFile(File.createTempFile("ClassBytesCacheTest", ".class"), new byte[6]);
+        a.deleteOnExit();
+        b.deleteOnExit();
+
+        ClassBytesCache cache = new ClassBytesCache(10);
+        cache.get("A", a.toURI().toURL());
+        cache.get("B", b.toURI().toURL());
+        assertEquals(6, cache.getTotalBytes());
+
+        cache.get("A", a.toURI().toURL());
+        assertEquals(3, cache.getMisses());
+    }
+}
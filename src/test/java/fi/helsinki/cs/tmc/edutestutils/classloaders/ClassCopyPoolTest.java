@@ -0,0 +1,76 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClassCopyPoolTest {
+    public static int initCount = 0;
+    public static class Subject {
+        static {
+            initCount += 1;
+        }
+    }
+
+    private ClassCopyPool pool = new ClassCopyPool(2);
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private void awaitAvailable(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.available(Subject.class.getName()) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, pool.available(Subject.class.getName()));
+    }
+
+    @Test
+    public void preloadsUninitializedCopiesAfterFirstRequest() throws Exception {
+        int initsBefore = initCount;
+        assertEquals(0, pool.available(Subject.class.getName()));
+
+        Class<?> first = pool.take(Subject.class.getName());
+        awaitAvailable(2);
+
+        Class<?> second = pool.take(Subject.class.getName());
+        Class<?> third = pool.take(Subject.class.getName());
+        assertNotSame(Subject.class, first);
+        assertNotSame(first, second);
+        assertNotSame(second, third);
+        assertNotSame(first.getClassLoader(), second.getClassLoader());
+        assertEquals(initsBefore, initCount);
+
+        second.newInstance();
+        assertEquals(initsBefore + 1, initCount);
+        awaitAvailable(2);
+    }
+
+    @Test
+    public void keepsCopiesPerPackageSelection() throws Exception {
+        pool.take(Subject.class.getName(), "some.pkg");
+        assertEquals(0, pool.available(Subject.class.getName()));
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void missingClassesAreReportedSynchronously() throws Exception {
+        pool.take("Nonexistent");
+    }
+
+    @Test
+    public void remembersMissingClassesUntilCleared() throws Exception {
+        for (int i = 0; i < 2; ++i) {
+            try {
+                pool.take("Nonexistent");
+                fail("Missing class not reported");
+            } catch (ClassNotFoundException e) {
+            }
+            assertTrue(pool.hasFailed("Nonexistent"));
+            assertEquals(0, pool.available("Nonexistent"));
+        }
+        pool.clear();
+        assertFalse(pool.hasFailed("Nonexistent"));
+    }
+}
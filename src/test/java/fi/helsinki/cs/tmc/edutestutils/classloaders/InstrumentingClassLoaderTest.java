@@ -0,0 +1,91 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import fi.helsinki.cs.tmc.edutestutils.testpkg.CountedSubject;
+import java.lang.reflect.Method;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InstrumentingClassLoaderTest {
+    private static final String SUBJECT = CountedSubject.class.getName();
+
+    private InstrumentingClassLoader loader;
+    private Class<?> cls;
+
+    @Before
+    public void setUp() throws Exception {
+        loader = new InstrumentingClassLoader("fi.helsinki.cs.tmc.edutestutils.testpkg");
+        cls = loader.loadClass(SUBJECT);
+    }
+
+    private Object callStatic(String name, Class<?> paramType, Object arg) throws Exception {
+        Method m = cls.getMethod(name, paramType);
+        return m.invoke(null, arg);
+    }
+
+    @Test
+    public void countsRecursiveCalls() throws Exception {
+        assertNotSame(CountedSubject.class, cls);
+        assertEquals(55, callStatic("fib", int.class, 10));
+        assertEquals(177, loader.getCallCount(SUBJECT, "fib"));
+    }
+
+    @Test
+    public void instrumentedCodeWithLoopsAndSwitchesStillWorks() throws Exception {
+        assertEquals(CountedSubject.loop(100), callStatic("loop", int.class, 100));
+        assertEquals(1, loader.getCallCount(SUBJECT, "loop"));
+        assertEquals(100, loader.getCallCount(SUBJECT, "helper"));
+
+        assertEquals(2, callStatic("lookup", long.class, 1000L));
+        assertEquals(0, callStatic("lookup", long.class, 5L));
+        assertEquals(2, loader.getCallCount(SUBJECT, "lookup"));
+    }
+
+    @Test
+    public void constructorsAndExceptionHandlersStillWork() throws Exception {
+        Object obj = cls.getConstructor(int.class).newInstance(5);
+        Method parseOr = cls.getMethod("parseOr", String.class, int.class);
+        assertEquals(12, parseOr.invoke(obj, "7", -1));
+        assertEquals(-1, parseOr.invoke(obj, "x", -1));
+        assertEquals(1, loader.getCallCount(SUBJECT, "<init>"));
+        assertEquals(2, loader.getCallCount(SUBJECT, "parseOr"));
+        assertEquals(3, loader.getCallCount(SUBJECT));
+        assertEquals(Long.valueOf(2), loader.getCallCounts().get(SUBJECT + ".parseOr(Ljava/lang/String;I)I"));
+    }
+
+    @Test
+    public void branchesBetweenNewAndConstructorCallStillWork() throws Exception {
+        assertEquals("a", callStatic("make", boolean.class, true));
+        assertEquals("b", callStatic("make", boolean.class, false));
+        assertEquals(2, loader.getCallCount(SUBJECT, "make"));
+    }
+
+    @Test
+    public void countsCanBeReset() throws Exception {
+        callStatic("fib", int.class, 5);
+        assertTrue(loader.getTotalCallCount() > 0);
+        loader.resetCounts();
+        assertEquals(0, loader.getTotalCallCount());
+        callStatic("fib", int.class, 1);
+        assertEquals(1, loader.getCallCount(SUBJECT, "fib"));
+    }
+
+    @Test
+    public void countersAreCollectedWithTheLoader() throws Exception {
+        long mark = ClassLoaderTracker.getShared().mark();
+        InstrumentingClassLoader other = new InstrumentingClassLoader("fi.helsinki.cs.tmc.edutestutils.testpkg");
+        ClassLoaderTracker.getShared().track(other, "instrumenting");
+        Method fib = other.loadClass(SUBJECT).getMethod("fib", int.class);
+        assertEquals(5, fib.invoke(null, 5));
+        assertEquals(15, other.getCallCount(SUBJECT, "fib"));
+        assertEquals(0, loader.getCallCount(SUBJECT, "fib"));
+        other = null;
+        fib = null;
+        assertTrue(ClassLoaderTracker.getShared().awaitCollection(mark, 5000).isEmpty());
+    }
+
+    @Test
+    public void countersAreSharedWithTheParent() throws Exception {
+        assertSame(ExecutionCounters.class, loader.loadClass(ExecutionCounters.class.getName()));
+    }
+}
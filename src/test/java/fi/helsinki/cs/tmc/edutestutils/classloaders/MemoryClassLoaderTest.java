@@ -0,0 +1,56 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+public class MemoryClassLoaderTest {
+    public static class Subject {
+    }
+
+    private Map<String, byte[]> compile(String className, String code) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeNotNull(compiler);
+        MemoryFileManager fm = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+        boolean ok = compiler.getTask(null, fm, null, null, null, Arrays.asList(MemoryFileManager.sourceFile(className, code))).call();
+        assertTrue(ok);
+        return fm.getClassFiles();
+    }
+
+    @Test
+    public void loadsClassesFromMap() throws Exception {
+        String name = Subject.class.getName();
+        byte[] bytes = AbstractClassLoader.readResource(getClass().getClassLoader().getResource(name.replace('.', '/') + ".class"));
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        classes.put(name, bytes);
+        MemoryClassLoader loader = new MemoryClassLoader(classes);
+
+        Class<?> cls = loader.loadClass(name);
+        assertNotSame(Subject.class, cls);
+        assertSame(loader, cls.getClassLoader());
+        assertSame(Test.class, loader.loadClass(Test.class.getName()));
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void missingClassesAreNotFound() throws Exception {
+        new MemoryClassLoader().loadClass("no.such.Thing");
+    }
+
+    @Test
+    public void compilesAndLoadsVariantsInMemory() throws Exception {
+        String template = "package gen; public class Variant { public static int value() { return %d; } public static int helper() { return Helper.X; } }"
+                + " class Helper { static final int X = 7; }";
+        for (int i = 0; i < 3; ++i) {
+            Map<String, byte[]> classes = compile("gen.Variant", String.format(template, i));
+            assertEquals(2, classes.size());
+            Class<?> cls = new MemoryClassLoader(classes).loadClass("gen.Variant");
+            assertEquals(i, cls.getMethod("value").invoke(null));
+            assertEquals(7, cls.getMethod("helper").invoke(null));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OverridingClassLoaderTest {
+    public static class Subject {
+    }
+
+    @Test
+    public void reloadsClasses() throws Exception {
+        Class<?> cls = new OverridingClassLoader().loadClass(Subject.class.getName());
+        assertNotSame(Subject.class, cls);
+        assertEquals(Subject.class.getName(), cls.getName());
+    }
+
+    @Test
+    public void delegatesJavaClassesToParent() throws Exception {
+        assertSame(String.class, new OverridingClassLoader().loadClass("java.lang.String"));
+    }
+
+    @Test
+    public void delegatesJdkAndJUnitClassesToParent() throws Exception {
+        OverridingClassLoader loader = new OverridingClassLoader();
+        assertSame(Test.class, loader.loadClass(Test.class.getName()));
+        assertSame(javax.tools.ToolProvider.class, loader.loadClass("javax.tools.ToolProvider"));
+    }
+
+    @Test
+    public void classesOnlyTheParentHasAreDelegated() throws Exception {
+        ClassLoader parent = new ClassLoader(OverridingClassLoaderTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (name.equals("parent.Only")) {
+                    return Subject.class;
+                }
+                throw new ClassNotFoundException(name);
+            }
+        };
+        AbstractClassLoader.clearMissingClasses();
+        OverridingClassLoader loader = new OverridingClassLoader(parent);
+        for (int i = 0; i < 2; ++i) {
+            assertSame(Subject.class, loader.loadClass("parent.Only"));
+        }
+        try {
+            loader.loadClass("no.such.Thing");
+            fail();
+        } catch (ClassNotFoundException e) {
+        }
+    }
+
+    private static class CountingLoader extends OverridingClassLoader {
+        final AtomicInteger lookups = new AtomicInteger();
+
+        CountingLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        URL findClassFile(String name) {
+            lookups.incrementAndGet();
+            return super.findClassFile(name);
+        }
+    }
+
+    @Test
+    public void remembersClassesThatWereNotFound() throws Exception {
+        ClassLoader parent = new ClassLoader(OverridingClassLoaderTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (name.equals("parent.Remembered")) {
+                    return Subject.class;
+                }
+                throw new ClassNotFoundException(name);
+            }
+        };
+        AbstractClassLoader.clearMissingClasses();
+        CountingLoader first = new CountingLoader(parent);
+        assertSame(Subject.class, first.loadClass("parent.Remembered"));
+        assertEquals(1, first.lookups.get());
+
+        CountingLoader second = new CountingLoader(parent);
+        assertSame(Subject.class, second.loadClass("parent.Remembered"));
+        assertEquals(0, second.lookups.get());
+
+        AbstractClassLoader.clearMissingClasses();
+        CountingLoader third = new CountingLoader(parent);
+        assertSame(Subject.class, third.loadClass("parent.Remembered"));
+        assertEquals(1, third.lookups.get());
+    }
+
+    @Test
+    public void loadsEachClassOnceWhenUsedInParallel() throws Exception {
+        final OverridingClassLoader loader = new OverridingClassLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Class<?>>> results = new ArrayList<Future<Class<?>>>();
+            for (int i = 0; i < 32; ++i) {
+                results.add(executor.submit(new Callable<Class<?>>() {
+                    @Override
+                    public Class<?> call() throws Exception {
+                        return loader.loadClass(Subject.class.getName());
+                    }
+                }));
+            }
+            Class<?> first = results.get(0).get();
+            for (Future<Class<?>> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
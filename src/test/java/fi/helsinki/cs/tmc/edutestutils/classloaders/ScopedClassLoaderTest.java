@@ -0,0 +1,64 @@
+package fi.helsinki.cs.tmc.edutestutils.classloaders;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ScopedClassLoaderTest {
+    public static class Subject {
+    }
+
+    private ClassNameMatcher matcher(String[] includes, String... excludes) {
+        return new ClassNameMatcher(Arrays.asList(includes), Arrays.asList(excludes));
+    }
+
+    @Test
+    public void matchesPackagesSubpackagesAndNestedClasses() {
+        ClassNameMatcher m = matcher(new String[] { "com.example", "Main" });
+        assertTrue(m.matches("com.example.Foo"));
+        assertTrue(m.matches("com.example.sub.Foo"));
+        assertTrue(m.matches("com.example"));
+        assertTrue(m.matches("Main"));
+        assertTrue(m.matches("Main$Inner"));
+        assertFalse(m.matches("com.examples.Foo"));
+        assertFalse(m.matches("com.exam"));
+        assertFalse(m.matches("MainHelper"));
+        assertFalse(m.matches("org.Foo"));
+    }
+
+    @Test
+    public void mostSpecificPatternDecides() {
+        ClassNameMatcher m = matcher(new String[] { "com", "com.example.keep" }, "com.example", "com.other");
+        assertTrue(m.matches("com.Foo"));
+        assertFalse(m.matches("com.example.Foo"));
+        assertTrue(m.matches("com.example.keep.Foo"));
+        assertFalse(m.matches("com.other"));
+    }
+
+    @Test
+    public void excludeBeatsIdenticalInclude() {
+        assertFalse(matcher(new String[] { "a.b" }, "a.b").matches("a.b.C"));
+    }
+
+    @Test
+    public void emptyPatternMatchesEverythingAndTrailingDotMatchesPrefix() {
+        ClassNameMatcher all = new ClassNameMatcher(Collections.singletonList(""));
+        assertTrue(all.matches("Main"));
+        assertTrue(all.matches("a.b.C"));
+
+        ClassNameMatcher prefix = new ClassNameMatcher(Collections.singletonList("a.b."));
+        assertTrue(prefix.matches("a.b.C"));
+        assertFalse(prefix.matches("a.bc.D"));
+    }
+
+    @Test
+    public void reloadsOnlyMatchingClasses() throws Exception {
+        ScopedClassLoader loader = new ScopedClassLoader(Subject.class.getName());
+        Class<?> cls = loader.loadClass(Subject.class.getName());
+        assertNotSame(Subject.class, cls);
+        assertSame(loader, cls.getClassLoader());
+        assertSame(Test.class, loader.loadClass(Test.class.getName()));
+        assertSame(String.class, new ScopedClassLoader("").loadClass("java.lang.String"));
+    }
+}
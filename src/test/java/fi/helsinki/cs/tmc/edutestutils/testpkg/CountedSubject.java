@@ -0,0 +1,54 @@
+package fi.helsinki.cs.tmc.edutestutils.testpkg;
+
+public class CountedSubject {
+    private int value;
+
+    public CountedSubject(int value) {
+        this.value = value;
+    }
+
+    public static int fib(int n) {
+        if (n < 2) {
+            return n;
+        }
+        return fib(n - 1) + fib(n - 2);
+    }
+
+    public static int loop(int n) {
+        int sum = 0;
+        for (int i = 0; i < n; ++i) {
+            sum += helper(i);
+        }
+        return sum;
+    }
+
+    private static int helper(int i) {
+        switch (i % 4) {
+            case 0: return 1;
+            case 1: return 2;
+            case 2: return 3;
+            default: return 4;
+        }
+    }
+
+    public static int lookup(long key) {
+        switch ((int)key) {
+            case 10: return 1;
+            case 1000: return 2;
+            case 100000: return 3;
+            default: return 0;
+        }
+    }
+
+    public int parseOr(String s, int fallback) {
+        try {
+            return Integer.parseInt(s) + value;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    public static String make(boolean flag) {
+        return new StringBuilder(flag ? "a" : "b").toString();
+    }
+}
@@ -0,0 +1,137 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+public class AllocationLimitTest {
+    private static final long MEGABYTE = 1024 * 1024;
+    
+    public AllocationLimit allocationLimit = new AllocationLimit();
+    
+    // Keeps allocations from being optimized away.
+    private static volatile Object sink;
+    
+    @Before
+    public void checkThatAllocationsCanBeMeasured() {
+        Assume.assumeTrue(Watchdog.ALLOCATED_BYTES.enable());
+    }
+    
+    private static void allocate(long bytes) {
+        for (long i = 0; i < bytes / MEGABYTE && !Thread.currentThread().isInterrupted(); ++i) {
+            sink = new byte[(int)MEGABYTE];
+        }
+    }
+    
+    private static void allocateInThreads(int count, final long bytesEach) {
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    allocate(bytesEach);
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+    
+    @Test
+    public void imposesLimitGivenInTestMethod() throws Throwable {
+        try {
+            runWithAllocationLimit(new Runnable() {
+                @Override
+                public void run() {
+                    allocationLimit.set(10 * MEGABYTE);
+                    allocate(Long.MAX_VALUE);
+                }
+            });
+            fail("Expected AllocationLimitException");
+        } catch (AllocationLimitException e) {
+            assertEquals("Allocation limit (" + 10 * MEGABYTE + " bytes) exceeded", e.getMessage());
+        }
+    }
+    
+    @Test
+    public void imposesNoLimitByDefault() throws Throwable {
+        runWithAllocationLimit(new Runnable() {
+            @Override
+            public void run() {
+                allocate(100 * MEGABYTE);
+            }
+        });
+    }
+    
+    @Test(expected=AllocationLimitException.class)
+    public void mayBeGivenADefaultLimit() throws Throwable {
+        allocationLimit = new AllocationLimit(10 * MEGABYTE);
+        runWithAllocationLimit(new Runnable() {
+            @Override
+            public void run() {
+                allocate(Long.MAX_VALUE);
+            }
+        });
+    }
+    
+    @Test
+    public void allowsAllocationsWithinTheLimit() throws Throwable {
+        allocationLimit = new AllocationLimit(100 * MEGABYTE);
+        runWithAllocationLimit(new Runnable() {
+            @Override
+            public void run() {
+                allocate(10 * MEGABYTE);
+            }
+        });
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void passesThroughExceptionsInTests() throws Throwable {
+        runWithAllocationLimit(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalArgumentException();
+            }
+        });
+    }
+    
+    @Test
+    public void ignoresSpawnedThreadsByDefault() throws Throwable {
+        allocationLimit = new AllocationLimit(10 * MEGABYTE);
+        runWithAllocationLimit(new Runnable() {
+            @Override
+            public void run() {
+                allocateInThreads(2, 50 * MEGABYTE);
+            }
+        });
+    }
+    
+    @Test(expected=AllocationLimitException.class)
+    public void mayIncludeSpawnedThreads() throws Throwable {
+        allocationLimit = new AllocationLimit(10 * MEGABYTE);
+        allocationLimit.setIncludeSpawnedThreads(true);
+        runWithAllocationLimit(new Runnable() {
+            @Override
+            public void run() {
+                allocateInThreads(2, Long.MAX_VALUE);
+            }
+        });
+    }
+    
+    private void runWithAllocationLimit(final Runnable runnable) throws Throwable {
+        allocationLimit.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                runnable.run();
+            }
+        }, Description.EMPTY).evaluate();
+    }
+}
@@ -1,5 +1,7 @@
 package fi.helsinki.cs.tmc.edutestutils.timing;
 
+import java.util.HashSet;
+import java.util.Set;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -76,6 +78,104 @@ public class CpuTimeLimitTest {
         });
     }
     
+    @Test
+    public void detectsTimeoutSoonAfterTheLimit() throws Throwable {
+        timeLimit = new CpuTimeLimit(0.2);
+        long start = System.nanoTime();
+        try {
+            runWithTimeLimit(new Runnable() {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                    }
+                }
+            });
+            fail("Time limit not imposed");
+        } catch (TimeLimitException e) {
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 450);
+    }
+    
+    @Test
+    public void returnsAsSoonAsTheTestFinishes() throws Throwable {
+        timeLimit = new CpuTimeLimit(10.0);
+        long start = System.nanoTime();
+        runWithTimeLimit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < 400);
+    }
+    
+    private static void spinInThreads(int count) {
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    while (System.currentTimeMillis() < start + 3000 && !isInterrupted()) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+    
+    @Test
+    public void ignoresSpawnedThreadsByDefault() throws Throwable {
+        timeLimit = new CpuTimeLimit(0.3, CpuStopwatch.Mode.BOTH);
+        runWithTimeLimit(new Runnable() {
+            @Override
+            public void run() {
+                spinInThreads(2);
+            }
+        });
+    }
+    
+    @Test(expected=TimeLimitException.class)
+    public void mayIncludeSpawnedThreads() throws Throwable {
+        timeLimit = new CpuTimeLimit(0.3, CpuStopwatch.Mode.BOTH);
+        timeLimit.setIncludeSpawnedThreads(true);
+        runWithTimeLimit(new Runnable() {
+            @Override
+            public void run() {
+                spinInThreads(2);
+            }
+        });
+    }
+    
+    @Test
+    public void threadGroupsAreReusedInsteadOfAccumulating() throws Throwable {
+        timeLimit = new CpuTimeLimit(5.0, CpuStopwatch.Mode.BOTH);
+        timeLimit.setIncludeSpawnedThreads(true);
+        final Set<ThreadGroup> groups = new HashSet<ThreadGroup>();
+        for (int i = 0; i < 20; ++i) {
+            runWithTimeLimit(new Runnable() {
+                @Override
+                public void run() {
+                    groups.add(Thread.currentThread().getThreadGroup());
+                    Thread spawned = new Thread();
+                    spawned.start();
+                    try {
+                        spawned.join();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        }
+        assertEquals(1, groups.size());
+    }
+    
     private void runWithTimeLimit(final Runnable runnable) throws Throwable {
         timeLimit.apply(new Statement() {
             @Override
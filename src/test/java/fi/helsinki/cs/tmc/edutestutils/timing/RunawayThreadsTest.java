@@ -0,0 +1,205 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import static org.junit.Assert.*;
+
+public class RunawayThreadsTest {
+    private static volatile boolean stopStubborn = false;
+
+    @After
+    public void tearDown() {
+        RunawayThreads.reset();
+    }
+
+    private Thread start(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void stopsThreadsThatIgnoreInterrupts() throws Exception {
+        Thread t = start(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                }
+            }
+        });
+        RunawayThreads.terminate(new Thread[] { t }, 50);
+        t.join(5000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    public void reportsThreadsThatCantBeStopped() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+        final AtomicReference<List<Thread>> found = new AtomicReference<List<Thread>>();
+        RunawayThreads.Listener listener = new RunawayThreads.Listener() {
+            @Override
+            public void runawayThreadsFound(List<Thread> runaways) {
+                found.set(runaways);
+                reported.countDown();
+            }
+        };
+        RunawayThreads.addListener(listener);
+        Thread t = start(new Runnable() {
+            @Override
+            public void run() {
+                while (!stopStubborn) {
+                    try {
+                        while (!stopStubborn) {
+                        }
+                    } catch (Throwable e) {
+                        // Ignore interrupts and ThreadDeath
+                    }
+                }
+            }
+        });
+        try {
+            RunawayThreads.terminate(new Thread[] { t }, 50);
+            assertTrue(reported.await(5, TimeUnit.SECONDS));
+            assertEquals(1, found.get().size());
+            assertSame(t, found.get().get(0));
+            assertTrue(RunawayThreads.isJvmPoisoned());
+            assertTrue(RunawayThreads.getRunawayThreads().contains(t));
+        } finally {
+            RunawayThreads.removeListener(listener);
+            stopStubborn = true;
+        }
+        t.join(5000);
+        assertFalse(RunawayThreads.getRunawayThreads().contains(t));
+        RunawayThreads.reset();
+        assertFalse(RunawayThreads.isJvmPoisoned());
+    }
+
+    @Test
+    public void failingListenersDontKeepOthersFromBeingNotified() throws Exception {
+        final CountDownLatch stop = new CountDownLatch(1);
+        final List<Thread> notified = new ArrayList<Thread>();
+        RunawayThreads.Listener failing = new RunawayThreads.Listener() {
+            @Override
+            public void runawayThreadsFound(List<Thread> runaways) {
+                throw new StackOverflowError();
+            }
+        };
+        RunawayThreads.Listener working = new RunawayThreads.Listener() {
+            @Override
+            public void runawayThreadsFound(List<Thread> runaways) {
+                notified.addAll(runaways);
+            }
+        };
+        Thread t = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stop.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        RunawayThreads.addListener(failing);
+        RunawayThreads.addListener(working);
+        try {
+            List<Throwable> failures = RunawayThreads.checkStopped(new Thread[] { t });
+            assertEquals(1, failures.size());
+            assertTrue(failures.get(0) instanceof StackOverflowError);
+            assertEquals(1, notified.size());
+            assertSame(t, notified.get(0));
+        } finally {
+            RunawayThreads.removeListener(failing);
+            RunawayThreads.removeListener(working);
+            stop.countDown();
+        }
+    }
+
+    @Test
+    public void cpuTimeLimitTerminatesRunawayTests() throws Throwable {
+        CpuTimeLimit limit = new CpuTimeLimit(0.1);
+        limit.setTerminationGracePeriod(0.05);
+        final Thread[] testThread = new Thread[1];
+        try {
+            limit.apply(new Statement() {
+                @Override
+                public void evaluate() {
+                    testThread[0] = Thread.currentThread();
+                    while (true) {
+                    }
+                }
+            }, Description.EMPTY).evaluate();
+            fail();
+        } catch (TimeLimitException e) {
+        }
+        testThread[0].join(5000);
+        assertFalse(testThread[0].isAlive());
+    }
+
+    @Test
+    public void gracePeriodMayBeSetFromTheTest() throws Throwable {
+        final CpuTimeLimit limit = new CpuTimeLimit(0.1);
+        final Thread[] testThread = new Thread[1];
+        try {
+            limit.apply(new Statement() {
+                @Override
+                public void evaluate() {
+                    testThread[0] = Thread.currentThread();
+                    limit.setTerminationGracePeriod(0.05);
+                    while (true) {
+                    }
+                }
+            }, Description.EMPTY).evaluate();
+            fail();
+        } catch (TimeLimitException e) {
+        }
+        // With the default grace period of 1s the thread would still be alive.
+        testThread[0].join(700);
+        assertFalse(testThread[0].isAlive());
+    }
+
+    @Test
+    public void sharedThreadsStayOutOfTheGroupsOfNestedTests() throws Throwable {
+        final CpuTimeLimit outer = new CpuTimeLimit(30.0);
+        outer.setIncludeSpawnedThreads(true);
+        final CpuTimeLimit inner = new CpuTimeLimit(0.2);
+        inner.setTerminationGracePeriod(0.05);
+        final ThreadGroup[] outerGroup = new ThreadGroup[1];
+        try {
+            outer.apply(new Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    outerGroup[0] = Thread.currentThread().getThreadGroup();
+                    inner.apply(new Statement() {
+                        @Override
+                        public void evaluate() {
+                            while (true) {
+                            }
+                        }
+                    }, Description.EMPTY).evaluate();
+                }
+            }, Description.EMPTY).evaluate();
+            fail();
+        } catch (TimeLimitException e) {
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outerGroup[0].activeCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outerGroup[0].activeCount());
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("TimeLimit.Terminator") || t.getName().equals("Watchdog")) {
+                assertSame(BackgroundThreads.getGroup(), t.getThreadGroup());
+                assertNull(t.getContextClassLoader());
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package fi.helsinki.cs.tmc.edutestutils.timing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WatchdogTest {
+    private static final Watchdog.Meter CPU = Watchdog.cpuTime(CpuStopwatch.Mode.BOTH);
+    private volatile boolean stop = false;
+
+    @After
+    public void tearDown() {
+        stop = true;
+    }
+
+    private Thread busyThread() {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                while (!stop) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private Thread sleepingThread() {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                while (!stop) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private Watchdog.Listener countDown(final CountDownLatch latch) {
+        return new Watchdog.Listener() {
+            @Override
+            public void limitExceeded(Watchdog.Watch watch) {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void notifiesOnlyThreadsThatUseUpTheirBudget() throws Exception {
+        CountDownLatch busyExceeded = new CountDownLatch(2);
+        CountDownLatch idleExceeded = new CountDownLatch(1);
+        Watchdog watchdog = Watchdog.getShared();
+        watchdog.watch(busyThread().getId(), CPU, Watchdog.toNanos(0.1), countDown(busyExceeded));
+        watchdog.watch(busyThread().getId(), CPU, Watchdog.toNanos(0.2), countDown(busyExceeded));
+        Watchdog.Watch idle = watchdog.watch(sleepingThread().getId(), CPU, Watchdog.toNanos(0.1), countDown(idleExceeded));
+
+        assertTrue(busyExceeded.await(5, TimeUnit.SECONDS));
+        assertFalse(idleExceeded.await(300, TimeUnit.MILLISECONDS));
+        idle.cancel();
+    }
+
+    @Test
+    public void sumsThreadsInGroupIncludingDeadOnes() throws Exception {
+        ThreadGroup group = new ThreadGroup("WatchdogTest");
+        CountDownLatch exceeded = new CountDownLatch(1);
+        Watchdog.getShared().watch(group, CPU, Watchdog.toNanos(0.3), countDown(exceeded));
+        for (int i = 0; i < 4; ++i) {
+            Thread t = new Thread(group, "burst") {
+                @Override
+                public void run() {
+                    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                    while (bean.getCurrentThreadCpuTime() < 120000000L) {
+                    }
+                }
+            };
+            t.start();
+            t.join();
+        }
+        assertTrue(exceeded.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void limitCanBeChangedAndWatchCancelled() throws Exception {
+        CountDownLatch exceeded = new CountDownLatch(1);
+        Watchdog.Watch watch = Watchdog.getShared().watch(busyThread().getId(), CPU, Long.MAX_VALUE, countDown(exceeded));
+        assertFalse(exceeded.await(200, TimeUnit.MILLISECONDS));
+        watch.setLimit(Watchdog.toNanos(0.05));
+        assertTrue(exceeded.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch cancelled = new CountDownLatch(1);
+        watch = Watchdog.getShared().watch(busyThread().getId(), CPU, Watchdog.toNanos(0.2), countDown(cancelled));
+        watch.cancel();
+        assertFalse(cancelled.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void survivesErrorsOnTheWatchdogThread() throws Exception {
+        final AtomicInteger samples = new AtomicInteger();
+        Watchdog.Meter failingOnce = new Watchdog.Meter() {
+            @Override
+            long[] sample(long[] ids) {
+                if (samples.incrementAndGet() == 2) {
+                    throw new OutOfMemoryError("test");
+                }
+                return CPU.sample(ids);
+            }
+
+            @Override
+            long checkInterval(long remaining, boolean group) {
+                return CPU.checkInterval(remaining, group);
+            }
+
+            @Override
+            boolean enable() {
+                return CPU.enable();
+            }
+        };
+        CountDownLatch exceeded = new CountDownLatch(1);
+        Watchdog.getShared().watch(busyThread().getId(), failingOnce, Watchdog.toNanos(0.05), countDown(exceeded));
+        assertTrue(exceeded.await(5, TimeUnit.SECONDS));
+        assertTrue(samples.get() > 2);
+
+        CountDownLatch later = new CountDownLatch(1);
+        Watchdog.getShared().watch(busyThread().getId(), CPU, Watchdog.toNanos(0.05), countDown(later));
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+    }
+}
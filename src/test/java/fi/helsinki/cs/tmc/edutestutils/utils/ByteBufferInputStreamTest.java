@@ -0,0 +1,38 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ByteBufferInputStreamTest {
+
+    @Test
+    public void readsRemainingBytesWithoutMovingTheBuffer() throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+        buf.position(1);
+        ByteBufferInputStream in = new ByteBufferInputStream(buf);
+        assertEquals(3, in.available());
+        assertEquals(2, in.read());
+        byte[] rest = new byte[5];
+        assertEquals(2, in.read(rest, 0, 5));
+        assertEquals(4, rest[1]);
+        assertEquals(-1, in.read());
+        assertEquals(1, buf.position());
+    }
+
+    @Test
+    public void mapsFiles() throws Exception {
+        File file = File.createTempFile("ByteBufferInputStreamTest", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 'h', 'i' });
+        out.close();
+
+        ByteBufferInputStream in = ByteBufferInputStream.map(file.toPath());
+        assertEquals('h', in.read());
+        assertEquals('i', in.read());
+        assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CaptureBufferTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void capturesEverythingByDefault() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        buf.write("hello ".getBytes(UTF8));
+        buf.write('x');
+        assertEquals("hello x", buf.toString(UTF8));
+        assertEquals(7, buf.size());
+    }
+
+    @Test
+    public void truncatesWithMarker() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer(5, CaptureBuffer.OverflowPolicy.TRUNCATE);
+        buf.write("hello world".getBytes(UTF8));
+        buf.write("more".getBytes(UTF8));
+        assertTrue(buf.isTruncated());
+        assertEquals("hello" + CaptureBuffer.TRUNCATION_MARKER, buf.toString(UTF8));
+    }
+
+    @Test
+    public void failsWhenLimitIsExceeded() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer(5, CaptureBuffer.OverflowPolicy.FAIL);
+        buf.write("hello".getBytes(UTF8));
+        try {
+            buf.write('!');
+            fail("Expected OutputLimitExceededException");
+        } catch (OutputLimitExceededException e) {
+        }
+        assertTrue(buf.isLimitExceeded());
+        try {
+            buf.write('!');
+            fail("Expected OutputLimitExceededException");
+        } catch (OutputLimitExceededException e) {
+        }
+        assertEquals("hello", buf.toString(UTF8));
+    }
+
+    @Test
+    public void spillsToDisk() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer(4, CaptureBuffer.OverflowPolicy.SPILL_TO_DISK);
+        buf.write("hello ".getBytes(UTF8));
+        buf.write('w');
+        buf.write("orld".getBytes(UTF8));
+        assertEquals(11, buf.size());
+        assertEquals("hello world", buf.toString(UTF8));
+
+        byte[] part = new byte[5];
+        assertEquals(5, buf.read(2, part, 0, 5));
+        assertEquals("llo w", new String(part, UTF8));
+        assertEquals(-1, buf.read(11, part, 0, 5));
+        buf.close();
+    }
+
+    @Test
+    public void resetDiscardsEverything() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer(2, CaptureBuffer.OverflowPolicy.SPILL_TO_DISK);
+        buf.write("hello".getBytes(UTF8));
+        buf.reset();
+        assertEquals(0, buf.size());
+        buf.write("hi".getBytes(UTF8));
+        assertEquals("hi", buf.toString(UTF8));
+    }
+}
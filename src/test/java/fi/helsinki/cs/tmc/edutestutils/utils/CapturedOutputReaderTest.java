@@ -0,0 +1,58 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CapturedOutputReaderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static CaptureBuffer bufferWith(String text) throws IOException {
+        CaptureBuffer buf = new CaptureBuffer();
+        buf.write(text.getBytes(UTF8));
+        return buf;
+    }
+
+    private static String readAll(CapturedOutputReader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] chunk = new char[3];
+        int n;
+        while ((n = reader.read(chunk, 0, chunk.length)) != -1) {
+            sb.append(chunk, 0, n);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void normalizesLineEndings() throws Exception {
+        CaptureBuffer buf = bufferWith("a\r\nb\rc\r\n\r\nd\r");
+        assertEquals("a\nb\rc\n\nd\r", readAll(new CapturedOutputReader(buf, UTF8)));
+    }
+
+    @Test
+    public void decodesMultibyteCharactersAcrossBufferBoundaries() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; ++i) {
+            sb.append("mää\r\n");
+        }
+        CaptureBuffer buf = bufferWith(sb.toString());
+        assertEquals(sb.toString().replace("\r\n", "\n"), readAll(new CapturedOutputReader(buf, UTF8)));
+    }
+
+    @Test
+    public void readsLines() throws Exception {
+        CapturedOutputReader reader = new CapturedOutputReader(bufferWith("one\r\n\ntwo\nthree"), UTF8);
+        assertEquals("one", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("two", reader.readLine());
+        assertEquals("three", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void readsTheGivenRange() throws Exception {
+        CaptureBuffer buf = bufferWith("hello world");
+        assertEquals("lo wo", readAll(new CapturedOutputReader(buf, 3, 8, UTF8)));
+    }
+}
@@ -0,0 +1,70 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.InterruptedIOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FeedableInputStreamTest {
+
+    @Test
+    public void readsWhatWasFed() throws Exception {
+        FeedableInputStream in = new FeedableInputStream();
+        in.feed(new byte[] { 1, 2, 3 });
+        assertEquals(3, in.available());
+        assertEquals(1, in.read());
+        byte[] buf = new byte[10];
+        assertEquals(2, in.read(buf, 0, 10));
+        assertEquals(3, buf[1]);
+    }
+
+    @Test
+    public void growsAcrossTheRingBoundary() throws Exception {
+        FeedableInputStream in = new FeedableInputStream();
+        byte[] data = new byte[200];
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = (byte)(i + round);
+            }
+            in.feed(data);
+            in.feed(data);
+            for (int i = 0; i < 2 * data.length; ++i) {
+                assertEquals((i % data.length + round) & 0xFF, in.read());
+            }
+        }
+    }
+
+    @Test
+    public void blocksUntilDataIsFed() throws Exception {
+        final FeedableInputStream in = new FeedableInputStream();
+        Thread feeder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!in.isWaitingForInput()) {
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                }
+                in.feed(new byte[] { 42 });
+            }
+        };
+        feeder.start();
+        assertEquals(42, in.read());
+        feeder.join();
+    }
+
+    @Test
+    public void returnsEndOfFileAfterEndInput() throws Exception {
+        FeedableInputStream in = new FeedableInputStream();
+        in.feed(new byte[] { 7 });
+        in.endInput();
+        assertEquals(7, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected=InterruptedIOException.class)
+    public void readsTimeOut() throws Exception {
+        FeedableInputStream in = new FeedableInputStream(10);
+        in.read();
+    }
+}
@@ -0,0 +1,105 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IncrementalDecoderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void decodesOnlyNewOutput() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+        assertEquals("", decoder.getText());
+
+        buf.write("hello ".getBytes(UTF8));
+        String first = decoder.getText();
+        assertEquals("hello ", first);
+        assertSame(first, decoder.getText());
+
+        buf.write("world".getBytes(UTF8));
+        assertEquals("hello world", decoder.getText());
+    }
+
+    @Test
+    public void waitsForIncompleteCharacters() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+        byte[] bytes = "ä".getBytes(UTF8);
+
+        buf.write(bytes[0]);
+        assertEquals("", decoder.getText());
+        buf.write(bytes[1]);
+        assertEquals("ä", decoder.getText());
+    }
+
+    @Test
+    public void normalizesLineEndingsSplitAcrossCalls() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+
+        buf.write("a\r".getBytes(UTF8));
+        assertEquals("a\r", decoder.getText());
+        buf.write("\nb\r\r\n".getBytes(UTF8));
+        assertEquals("a\nb\r\n", decoder.getText());
+    }
+
+    @Test
+    public void startsOverIfTheBufferIsReset() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+        buf.write("hello".getBytes(UTF8));
+        assertEquals("hello", decoder.getText());
+
+        buf.reset();
+        buf.write("hi".getBytes(UTF8));
+        assertEquals("hi", decoder.getText());
+    }
+
+    @Test
+    public void decodesAgainInsteadOfKeepingTextPastTheLimit() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+        decoder.setMaxRetainedChars(4);
+
+        buf.write("ab\r".getBytes(UTF8));
+        assertEquals("ab\r", decoder.getText());
+        buf.write("\ncdä".getBytes(UTF8));
+        assertEquals("ab\ncdä", decoder.getText());
+        assertEquals(6, decoder.length());
+        assertEquals("cdä", decoder.getTextFrom(3));
+        assertEquals("", decoder.getTextFrom(6));
+
+        buf.write("ä".getBytes(UTF8)[0]);
+        assertEquals("ab\ncdä", decoder.getText());
+    }
+
+    @Test
+    public void includesTheNewlineAfterACarriageReturnBeforeTheOffset() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+
+        buf.write("a\r".getBytes(UTF8));
+        int offset = decoder.length();
+        assertTrue(decoder.endsWithCarriageReturn());
+        assertEquals("", decoder.getTextFrom(offset, true));
+        buf.write("\nb".getBytes(UTF8));
+        assertFalse(decoder.endsWithCarriageReturn());
+        assertEquals("\nb", decoder.getTextFrom(offset, true));
+        assertEquals("b", decoder.getTextFrom(offset));
+    }
+
+    @Test
+    public void finishDecodesTrailingMalformedBytes() throws Exception {
+        CaptureBuffer buf = new CaptureBuffer();
+        IncrementalDecoder decoder = new IncrementalDecoder(buf, UTF8);
+
+        buf.write('a');
+        buf.write("ä".getBytes(UTF8)[0]);
+        assertEquals("a", decoder.getText());
+        decoder.finish();
+        assertEquals("a\uFFFD", decoder.getText());
+        assertEquals(2, decoder.length());
+    }
+}
@@ -0,0 +1,36 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReaderInputStreamTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void encodesLargeTextsInChunks() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; ++i) {
+            sb.append("mää ").append(i).append('\n');
+        }
+        ReaderInputStream in = new ReaderInputStream(new StringReader(sb.toString()), UTF8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1000];
+        int n;
+        while ((n = in.read(chunk, 0, chunk.length)) != -1) {
+            out.write(chunk, 0, n);
+        }
+        assertArrayEquals(sb.toString().getBytes(UTF8), out.toByteArray());
+    }
+
+    @Test
+    public void readsSingleBytes() throws Exception {
+        ReaderInputStream in = new ReaderInputStream(new StringReader("ä"), UTF8);
+        assertEquals(0xC3, in.read());
+        assertEquals(0xA4, in.read());
+        assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,78 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SwitchableOutputStreamTest {
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        public int writeCalls = 0;
+
+        @Override
+        public synchronized void write(int b) {
+            writeCalls++;
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writeCalls++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void passesBulkWritesThroughInOneCall() throws IOException {
+        CountingOutputStream target = new CountingOutputStream();
+        SwitchableOutputStream out = new SwitchableOutputStream(target);
+        out.write("hello world".getBytes("UTF-8"));
+        out.write("xhellox".getBytes("UTF-8"), 1, 5);
+        assertEquals(2, target.writeCalls);
+        assertEquals("hello worldhello", target.toString("UTF-8"));
+    }
+
+    @Test
+    public void routesThreadsSeparately() throws Exception {
+        final ByteArrayOutputStream global = new ByteArrayOutputStream();
+        final ByteArrayOutputStream routed = new ByteArrayOutputStream();
+        final SwitchableOutputStream out = new SwitchableOutputStream(global);
+
+        out.setThreadUnderlying(routed);
+        try {
+            Thread child = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        out.write('c');
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            child.start();
+            child.join();
+            out.write('p');
+        } finally {
+            out.setThreadUnderlying(null);
+        }
+        out.write('g');
+
+        assertEquals("cp", routed.toString("UTF-8"));
+        assertEquals("g", global.toString("UTF-8"));
+        assertSame(global, out.getUnderlying());
+        assertNull(out.getThreadUnderlying());
+    }
+
+    @Test
+    public void canBeSwitched() throws IOException {
+        OutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        SwitchableOutputStream out = new SwitchableOutputStream(first);
+        out.setUnderlying(second);
+        out.write(new byte[] { 'x' });
+        assertEquals("x", second.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,47 @@
+package fi.helsinki.cs.tmc.edutestutils.utils;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TranscriptTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void readsMergedOutputAcrossSegments() throws Exception {
+        CaptureBuffer out = new CaptureBuffer();
+        CaptureBuffer err = new CaptureBuffer();
+        Transcript transcript = new Transcript(out, err);
+        OutputStream outSink = transcript.sink(Transcript.Stream.OUT);
+        OutputStream errSink = transcript.sink(Transcript.Stream.ERR);
+
+        outSink.write("ab".getBytes(UTF8));
+        outSink.write('c');
+        errSink.write("XY".getBytes(UTF8));
+        outSink.write("de".getBytes(UTF8));
+
+        assertEquals(7, transcript.size());
+        assertEquals(3, transcript.getSegments().size());
+        assertEquals("abcde", out.toString(UTF8));
+        assertEquals("XY", err.toString(UTF8));
+
+        byte[] dst = new byte[5];
+        assertEquals(5, transcript.read(1, dst, 0, 5));
+        assertEquals("bcXYd", new String(dst, UTF8));
+        assertEquals(-1, transcript.read(7, dst, 0, 5));
+    }
+
+    @Test
+    public void recordsPartiallyWrittenSegments() throws Exception {
+        CaptureBuffer out = new CaptureBuffer(3, CaptureBuffer.OverflowPolicy.FAIL);
+        Transcript transcript = new Transcript(out, new CaptureBuffer());
+        try {
+            transcript.sink(Transcript.Stream.OUT).write("hello".getBytes(UTF8));
+            fail("Expected OutputLimitExceededException");
+        } catch (OutputLimitExceededException e) {
+        }
+        assertEquals(3, transcript.size());
+        assertEquals("hel", transcript.getSegments().get(0).getText(UTF8));
+    }
+}